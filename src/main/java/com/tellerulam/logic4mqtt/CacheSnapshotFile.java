@@ -0,0 +1,179 @@
+package com.tellerulam.logic4mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+/*
+ * Checkpoints the TopicCache into a file, so values (including history and timestamps) are
+ * available again right after a restart, instead of only after the topics are next published.
+ *
+ * Layout (big endian):
+ *   int    magic "L4MC"
+ *   int    layout version
+ *   long   time of the checkpoint, ms since the epoch
+ *   int    number of topics
+ * followed by that number of topic entries as written by TopicCache.writeTo():
+ *   short  length of the UTF-8 encoded topic
+ *   byte[] topic
+ *   long   number of stores to the topic
+ *   int    length of the last payload as received, -1 if unknown
+ *   byte[] last payload
+ *   2x     the history of all values and of changed values, each
+ *     int    number of values, followed by that number of values, oldest first:
+ *       long   store number
+ *       long   time received, ms since the epoch
+ *       long   time last refreshed, ms since the epoch
+ *       long   numeric value (double bits) or position of the "val" member
+ *       byte   payload kind
+ *       int    payload length, -1 if no payload is kept
+ *       byte[] payload
+ *   byte   1 if a long-range history follows, as written by TimeSeries.writeTo():
+ *     int    number of raw sample blocks, each
+ *       long   time of the first sample
+ *       double value of the first sample
+ *       long   time, delta to its predecessor and raw bits of the last sample
+ *       int    leading and trailing zero bits of the last value window
+ *       int    number of samples
+ *       int    number of bits of compressed samples, followed by the bits in longs
+ *     2x     the minute and hour buckets, each
+ *       int    number of buckets, each
+ *       long   start time
+ *       double min, max, sum
+ *       int    number of samples
+ *
+ * A checkpoint is streamed to a temporary file which then replaces the previous one,
+ * so a crash while writing never leaves a truncated snapshot behind.
+ */
+class CacheSnapshotFile
+{
+	private static final int MAGIC=0x4c344d43;
+	private static final int VERSION=3;
+
+	private final File file;
+
+	CacheSnapshotFile(File file)
+	{
+		this.file=file;
+	}
+
+	/*
+	 * Restores the cache from the snapshot file, if configured, and schedules checkpoints.
+	 * Must be called before MQTT messages are received
+	 */
+	static void init()
+	{
+		String fn=System.getProperty("logic4mqtt.cache.snapshotfile");
+		if(fn==null)
+			return;
+		final CacheSnapshotFile sf=new CacheSnapshotFile(new File(fn));
+		sf.load();
+		long interval=Long.getLong("logic4mqtt.cache.snapshotinterval",300).longValue()*1000;
+		if(interval>0)
+		{
+			Main.t.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					sf.save();
+				}
+			},interval,interval);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("Cache snapshot"){
+			@Override
+			public void run()
+			{
+				sf.save();
+			}
+		});
+	}
+
+	synchronized void load()
+	{
+		if(!file.exists())
+			return;
+		long start=System.currentTimeMillis();
+		int count=0;
+		boolean corrupt=false;
+		try(FileChannel fc=FileChannel.open(file.toPath(),StandardOpenOption.READ))
+		{
+			MappedByteBuffer b=fc.map(FileChannel.MapMode.READ_ONLY,0,fc.size());
+			if(b.remaining()<20 || b.getInt()!=MAGIC || b.getInt()!=VERSION)
+			{
+				L.warning("Ignoring cache snapshot file "+file+" with unknown format");
+				return;
+			}
+			Date created=new Date(b.getLong());
+			for(int n=b.getInt();n>0;n--)
+			{
+				TopicCache.restore(b);
+				count++;
+			}
+			L.info("Restored "+count+" topics from cache snapshot of "+created+" in "+(System.currentTimeMillis()-start)+"ms");
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to read cache snapshot file "+file+", "+count+" topics were restored",e);
+		}
+		catch(RuntimeException e)
+		{
+			// Anything else than I/O errors means the file is corrupt
+			L.log(Level.WARNING,"Corrupt cache snapshot file "+file+", "+count+" topics were restored",e);
+			corrupt=true;
+		}
+		if(corrupt)
+		{
+			// Keep it for inspection, the next checkpoint would overwrite it
+			File aside=new File(file.getPath()+".corrupt");
+			try
+			{
+				Files.move(file.toPath(),aside.toPath(),StandardCopyOption.REPLACE_EXISTING);
+				L.warning("Moved corrupt cache snapshot file to "+aside);
+			}
+			catch(IOException e)
+			{
+				L.log(Level.WARNING,"Unable to move corrupt cache snapshot file "+file+" to "+aside,e);
+			}
+		}
+	}
+
+	synchronized void save()
+	{
+		File tmp=new File(file.getPath()+".tmp");
+		try
+		{
+			int count=0;
+			try(FileChannel fc=FileChannel.open(tmp.toPath(),StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE))
+			{
+				// Not closed, that would close the channel before it's forced
+				DataOutputStream out=new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc),65536));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				out.writeInt(0);
+				for(TopicCache t:TopicCache.topics.values())
+				{
+					t.writeTo(out);
+					count++;
+				}
+				out.flush();
+				// The number of topics is only known now
+				ByteBuffer cb=ByteBuffer.allocate(4);
+				cb.putInt(0,count);
+				fc.write(cb,16);
+				fc.force(false);
+			}
+			Files.move(tmp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+			L.fine("Wrote cache snapshot with "+count+" topics to "+file);
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to write cache snapshot file "+file,e);
+		}
+	}
+
+	private static final Logger L=Logger.getLogger(CacheSnapshotFile.class.getName());
+}
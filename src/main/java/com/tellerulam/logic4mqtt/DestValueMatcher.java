@@ -0,0 +1,48 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+
+/*
+ * The destination values of an event handler, compiled for lookup in constant time.
+ * Numeric destination values match numerically, all others by their string form --
+ * the same rules as comparing against each destination value in turn.
+ */
+final class DestValueMatcher
+{
+	private final Set<Double> numbers=new HashSet<>();
+	private final Set<String> strings=new HashSet<>();
+
+	DestValueMatcher(Object destvalues[])
+	{
+		for(Object dv:destvalues)
+		{
+			if(dv instanceof Number)
+			{
+				double d=((Number)dv).doubleValue();
+				// NaN never compares equal to anything
+				if(!Double.isNaN(d))
+					numbers.add(normalize(d));
+			}
+			else
+				strings.add(dv.toString());
+		}
+	}
+
+	/* Double.equals() tells -0.0 from 0.0, while == doesn't */
+	private static Double normalize(double d)
+	{
+		return Double.valueOf(d==0?0.0:d);
+	}
+
+	/*
+	 * valueAsNumber is the value converted with ScriptEngineTools.convertToNumberIfPossible(),
+	 * or null if it is not numeric. A non-numeric value can't match a numeric destination
+	 * value, as the string form of a number is always numeric
+	 */
+	boolean matches(Number valueAsNumber,String valueAsString)
+	{
+		if(valueAsNumber!=null && !numbers.isEmpty() && numbers.contains(normalize(valueAsNumber.doubleValue())))
+			return true;
+		return strings.contains(valueAsString);
+	}
+}
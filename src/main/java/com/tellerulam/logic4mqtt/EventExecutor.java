@@ -0,0 +1,144 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import javax.script.*;
+
+/*
+ * Runs event callbacks. Callbacks are partitioned by the script engine which owns
+ * them, and within a partition routed to one of its lanes by topic hash. Each lane is
+ * a single thread, so callbacks for the same topic and engine run in order, while
+ * independent engines and topics can run in parallel.
+ *
+ * The number of lanes of a partition is configured with logic4mqtt.events.concurrency.<name>,
+ * with the name being the engine's short name (e.g. "nashorn" or "groovy"), or "java" for
+ * callbacks implemented in Java like linkValue(). It defaults to 1 for engines which do
+ * not declare themselves thread-safe, and to the number of processors otherwise.
+ */
+public class EventExecutor
+{
+	public static final class Partition
+	{
+		final String name;
+		private final ExecutorService lanes[];
+
+		Partition(String name,int laneCount)
+		{
+			this(name,laneCount,Thread.NORM_PRIORITY);
+		}
+
+		Partition(final String name,int laneCount,final int priority)
+		{
+			this.name=name;
+			lanes=new ExecutorService[Math.max(1,laneCount)];
+			for(int ix=0;ix<lanes.length;ix++)
+			{
+				final String threadName="Events "+name+"/"+ix;
+				lanes[ix]=Executors.newSingleThreadExecutor(new ThreadFactory(){
+					@Override
+					public Thread newThread(final Runnable r)
+					{
+						Thread t=new Thread(threadName){
+							@Override
+							public void run()
+							{
+								// Handlers created by callbacks belong to the same partition
+								current.set(Partition.this);
+								r.run();
+							}
+						};
+						t.setPriority(priority);
+						return t;
+					}
+				});
+			}
+		}
+
+		void execute(Object key,Runnable r)
+		{
+			lanes[(key.hashCode()&0x7fffffff)%lanes.length].execute(r);
+		}
+
+		int getLaneCount()
+		{
+			return lanes.length;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name+"/"+lanes.length;
+		}
+	}
+
+	private static final Map<Object,Partition> partitions=new IdentityHashMap<>();
+	private static final ThreadLocal<Partition> current=new ThreadLocal<>();
+
+	private static synchronized Partition getPartition(Object key,String name,int defaultLanes)
+	{
+		Partition p=partitions.get(key);
+		if(p==null)
+		{
+			p=new Partition(name,Integer.getInteger("logic4mqtt.events.concurrency."+name,defaultLanes).intValue());
+			partitions.put(key,p);
+			L.info("Running "+name+" event callbacks in "+p.getLaneCount()+" lane(s)");
+		}
+		return p;
+	}
+
+	static Partition forEngine(ScriptEngine se)
+	{
+		ScriptEngineFactory f=se.getFactory();
+		List<String> names=f.getNames();
+		String name=names.isEmpty()?f.getEngineName():names.get(0);
+		// Engines which don't declare any threading model are not thread-safe
+		boolean threadSafe=f.getParameter("THREADING")!=null;
+		return getPartition(se,name,threadSafe?Runtime.getRuntime().availableProcessors():1);
+	}
+
+	public static Partition forJava()
+	{
+		return getPartition("java","java",Runtime.getRuntime().availableProcessors());
+	}
+
+	private static Partition quarantine;
+
+	/*
+	 * A single low-priority lane for handlers which repeatedly exceeded their time budget
+	 */
+	static synchronized Partition forQuarantine()
+	{
+		if(quarantine==null)
+			quarantine=new Partition("quarantine",1,Thread.MIN_PRIORITY);
+		return quarantine;
+	}
+
+	/*
+	 * The partition of the code currently running on this thread. Handlers created
+	 * outside of any known context share a single lane
+	 */
+	static Partition getCurrent()
+	{
+		Partition p=current.get();
+		if(p!=null)
+			return p;
+		return getPartition("default","default",1);
+	}
+
+	/*
+	 * Sets the partition of the code running on this thread, returning the previous one
+	 */
+	static Partition setCurrent(Partition p)
+	{
+		Partition prev=current.get();
+		if(p!=null)
+			current.set(p);
+		else
+			current.remove();
+		return prev;
+	}
+
+	private static final Logger L=Logger.getLogger(EventExecutor.class.getName());
+}
@@ -1,21 +1,26 @@
 package com.tellerulam.logic4mqtt;
 
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.logging.*;
-import java.util.regex.*;
 
 public class EventHandler
 {
 	static final Map<Integer,EventHandler> handlers=new HashMap<>();
+	/* Index over the topic patterns of all handlers, guarded by "handlers" */
+	static final TopicIndex<EventHandler> handlerIndex=new TopicIndex<>();
 	static int idCounter;
 
 	static public boolean removeByID(int id)
 	{
 		synchronized(handlers)
 		{
-			return handlers.remove(Integer.valueOf(id))!=null;
+			EventHandler h=handlers.remove(Integer.valueOf(id));
+			if(h==null)
+				return false;
+			handlerIndex.remove(h.topicPattern,h);
 		}
+		MQTTHandler.queueSubscriptionUpdate();
+		return true;
 	}
 
 	private static class AutoExpirer implements TimerCallbackInterface
@@ -36,10 +41,7 @@ public class EventHandler
 		@Override
 		public void run(Object userdata)
 		{
-			synchronized(handlers)
-			{
-				handlers.remove(Integer.valueOf(eh.id));
-			}
+			removeByID(eh.id);
 		}
 	}
 
@@ -50,7 +52,26 @@ public class EventHandler
 		EventCallbackInterface callback,
 		boolean oneShot,
 		String expires,
-		boolean initial
+		boolean initial,
+		boolean coalesce
+	)
+	{
+		return createNewHandler(topicPattern,destvalues,changeOnly,callback,oneShot,expires,initial,coalesce,EventExecutor.getCurrent());
+	}
+
+	/*
+	 * The callback is run in the given partition of the event executor
+	 */
+	static public int createNewHandler(
+		String topicPattern,
+		Object[] destvalues,
+		boolean changeOnly,
+		EventCallbackInterface callback,
+		boolean oneShot,
+		String expires,
+		boolean initial,
+		boolean coalesce,
+		EventExecutor.Partition partition
 	)
 	{
 		// Replace any possible destvalue with a Number instance, if possible
@@ -63,19 +84,24 @@ public class EventHandler
 					destvalues[i]=n;
 			}
 		}
+		int id;
 		synchronized(handlers)
 		{
-			EventHandler handler=new EventHandler(++idCounter,topicPattern,destvalues,changeOnly,callback,oneShot,expires);
+			EventHandler handler=new EventHandler(++idCounter,topicPattern,destvalues,changeOnly,callback,oneShot,expires,initial,coalesce,partition);
 			handlers.put(Integer.valueOf(handler.id),handler);
+			handlerIndex.add(handler.topicPattern,handler);
 			/* Queue an timer to expire the event handler, if "expires" was set */
 			if(expires!=null)
 				LogicTimer.addTimer("_EVENT_EXPIRER_"+topicPattern,expires,new AutoExpirer(handler),null);
 			if(L.isLoggable(Level.INFO))
 				L.info("Created new Event handler "+handler);
 			if(initial)
-				handler.checkInitialExecution(topicPattern);
-			return handler.id;
+				handler.checkInitialExecution();
+			id=handler.id;
 		}
+		// Not while holding "handlers", subscription updates take it
+		MQTTHandler.queueSubscriptionUpdate();
+		return id;
 	}
 
 	public static Collection<EventHandler> getAllHandlers()
@@ -86,82 +112,140 @@ public class EventHandler
 		}
 	}
 
-	private void checkInitialExecution(String topicPattern)
+	private void checkInitialExecution()
 	{
-		Map<String,Object> vals=TopicCache.getTopicValues(topicPattern);
-		for(Map.Entry<String,Object> val:vals.entrySet())
+		// The scan only returns topics matching our pattern
+		for(Iterator<Map.Entry<String,Object>> it=TopicCache.scanTopicValues(topicPattern);it.hasNext();)
 		{
-			String topic=val.getKey();
+			Map.Entry<String,Object> val=it.next();
 			Object value=val.getValue();
-			if(handles(topic) && hasDestValue(value))
-				queueExecution(topic,value,null,null,null);
+			if(hasDestValue(value))
+				queueExecution(TopicCache.removeStatusFunction(val.getKey()),value,null,null,null);
+		}
+	}
+
+	/*
+	 * Whether any handler is interested in the topic
+	 */
+	static boolean hasHandlerFor(TopicHandle topic)
+	{
+		List<EventHandler> matched=new ArrayList<>(1);
+		synchronized(handlers)
+		{
+			handlerIndex.collect(topic,matched);
 		}
+		return !matched.isEmpty();
 	}
 
-	static void dispatchEvent(String topic,TopicCache t)
+	static void dispatchEvent(TopicHandle topic,TopicCache.Snapshot t)
 	{
-		Object value=t.getValue();
-		Object fullValue=t.getFullValue();
 		synchronized(handlers)
 		{
-			for(EventHandler h:handlers.values())
+			// Matched handlers are run in order of their creation
+			Set<EventHandler> matched=new TreeSet<>(byID);
+			handlerIndex.collect(topic,matched);
+			if(matched.isEmpty())
+				return;
+			// Only now the payload actually needs to be decoded
+			Object value=t.getValue();
+			Object fullValue=t.getFullValue();
+			String displayTopic=topic.getDisplayName();
+			// Converted once for all handlers, if any of them has destination values
+			Number valueAsNumber=null;
+			String valueAsString=null;
+			for(EventHandler h:matched)
 			{
-				if(h.handles(topic) && h.hasDestValue(value))
+				if(h.destMatcher!=null && valueAsString==null)
+				{
+					valueAsNumber=ScriptEngineTools.convertToNumberIfPossible(value);
+					valueAsString=String.valueOf(value);
+				}
+				if(h.destMatcher==null || h.destMatcher.matches(valueAsNumber,valueAsString))
 				{
 					if(!h.changeOnly || !t.wasRefreshed())
-						h.queueExecution(topic, value, t.getPreviousValue(), t.getPreviousTimestamp(), fullValue);
+						h.queueExecution(displayTopic, value, t.getPreviousValue(), t.getPreviousTimestamp(), fullValue);
 				}
 			}
 		}
 	}
 
-	private boolean hasDestValue(Object value)
+	/*
+	 * Called when the first value of a topic has been received as a retained message.
+	 * This is the initial value for handlers which requested one, but were added before
+	 * the topic was known
+	 */
+	static void dispatchInitialEvent(TopicHandle topic,TopicCache.Snapshot t)
 	{
-		if(destvalues==null)
-			return true;
-		Number valueAsNumber=ScriptEngineTools.convertToNumberIfPossible(value);
-		String valueAsString=null;
-		//L.info("value is "+value+" "+value.getClass());
-		for(Object dv:destvalues)
+		synchronized(handlers)
 		{
-			//L.info("dv is "+dv+" "+dv.getClass());
-			if(valueAsNumber!=null && (dv instanceof Number))
+			Set<EventHandler> matched=new TreeSet<>(byID);
+			handlerIndex.collect(topic,matched);
+			if(matched.isEmpty())
+				return;
+			Object value=t.getValue();
+			for(EventHandler h:matched)
 			{
-				// Numerical comparision
-				if(valueAsNumber.doubleValue()==((Number)dv).doubleValue())
-					return true;
-			}
-			else
-			{
-				// Textual comparision
-				if(valueAsString==null)
-					valueAsString=value.toString();
-				if(valueAsString.equals(dv.toString()))
-					return true;
+				if(h.initial && h.hasDestValue(value))
+					h.queueExecution(topic.getDisplayName(),value,null,null,t.getFullValue());
 			}
 		}
-		return false;
 	}
 
-	private boolean handles(String topic)
+	private boolean hasDestValue(Object value)
 	{
-		Matcher m=topicPattern.matcher(topic);
-		return m.matches();
+		if(destMatcher==null)
+			return true;
+		return destMatcher.matches(ScriptEngineTools.convertToNumberIfPossible(value),String.valueOf(value));
 	}
 
+	private static final Comparator<EventHandler> byID=new Comparator<EventHandler>(){
+		@Override
+		public int compare(EventHandler h1,EventHandler h2)
+		{
+			return Integer.compare(h1.id,h2.id);
+		}
+	};
+
+	/*
+	 * "topic" is already in display form, as passed to scripts
+	 */
 	private void queueExecution(String topic,Object value,Object previousValue,Date previousTimestamp,Object fullValue)
 	{
-		topic=TopicCache.removeStatusFunction(topic);
-		eventExecutor.execute(new EventRunner(topic,value,previousValue,previousTimestamp,fullValue));
+		if(pendingRuns!=null)
+		{
+			synchronized(pendingRuns)
+			{
+				/*
+				 * If there is still an execution pending for this topic, let it run with the
+				 * newest value instead of queueing another one. The previous value stays
+				 * the one from before the first pending update
+				 */
+				EventRunner r=pendingRuns.get(topic);
+				if(r!=null)
+				{
+					r.value=value;
+					r.fullValue=fullValue;
+					return;
+				}
+				r=new EventRunner(topic,value,previousValue,previousTimestamp,fullValue);
+				pendingRuns.put(topic,r);
+				partition.execute(topic,r);
+			}
+			return;
+		}
+		partition.execute(topic,new EventRunner(topic,value,previousValue,previousTimestamp,fullValue));
 	}
 
 	private class EventRunner implements Runnable
 	{
 		final String topic;
-		final Object value;
+		/* May be replaced by newer values while pending, if the handler coalesces */
+		Object value;
+		Object fullValue;
 		final Object previousValue;
-		final Object fullValue;
 		final Date previousTimestamp;
+		/* When the runner was queued, in System.nanoTime() */
+		final long queued=System.nanoTime();
 		EventRunner(String topic, Object value, Object previousValue, Date previousTimestamp,Object fullValue)
 		{
 			this.topic=topic;
@@ -174,29 +258,54 @@ public class EventHandler
 		public void run()
 		{
 			//L.log(Level.SEVERE,"Value "+value+" is class "+value.getClass());
+			Object value, fullValue;
+			if(pendingRuns!=null)
+			{
+				synchronized(pendingRuns)
+				{
+					pendingRuns.remove(topic);
+					value=this.value;
+					fullValue=this.fullValue;
+				}
+			}
+			else
+			{
+				value=this.value;
+				fullValue=this.fullValue;
+			}
+			long start=System.nanoTime();
+			boolean failed=false;
+			Watchdog.Running w=Watchdog.begin(EventHandler.this,topic);
 			try
 			{
 				callback.run(topic,value,previousValue,previousTimestamp,fullValue);
 			}
 			catch(Exception e)
 			{
+				failed=true;
 				L.log(Level.WARNING, "Error when executing event callback for "+topic+"="+value,e);
 			}
+			finally
+			{
+				Watchdog.end(w);
+			}
+			stats.record(start-queued,System.nanoTime()-start,failed);
 			if(EventHandler.this.oneShot)
 				EventHandler.removeByID(EventHandler.this.id);
 		}
 	}
 
-	/* Currently, Nashorn is singlethreaded */
-	static final Executor eventExecutor=Executors.newFixedThreadPool(1);
-
 	static final Logger L=Logger.getLogger(EventHandler.class.getName());
 
-	private EventHandler(int id, String topicPattern, Object[] destvalues, boolean changeOnly, EventCallbackInterface callback,boolean oneShot,String expires)
+	private EventHandler(int id, String topicPattern, Object[] destvalues, boolean changeOnly, EventCallbackInterface callback,boolean oneShot,String expires,boolean initial,boolean coalesce,EventExecutor.Partition partition)
 	{
+		this.partition=partition;
+		this.initial=initial;
+		this.pendingRuns=coalesce?new HashMap<String,EventRunner>():null;
 		this.id=id;
-		this.topicPattern=Pattern.compile(topicPattern);
+		this.topicPattern=TopicPattern.compile(topicPattern);
 		this.destvalues=destvalues;
+		this.destMatcher=destvalues!=null?new DestValueMatcher(destvalues):null;
 		this.changeOnly=changeOnly;
 		this.callback=callback;
 		this.oneShot=oneShot;
@@ -206,7 +315,40 @@ public class EventHandler
 	@Override
 	public String toString()
 	{
-		return "{"+id+":"+topicPattern+"="+(destvalues==null?"*":Arrays.asList(destvalues))+"/"+(changeOnly?"CH":"UP")+(oneShot?"/OS":"")+(expires!=null?expires:"")+"}";
+		return "{"+id+":"+topicPattern+"="+(destvalues==null?"*":Arrays.asList(destvalues))+"/"+(changeOnly?"CH":"UP")+(oneShot?"/OS":"")+(pendingRuns!=null?"/CO":"")+(expires!=null?expires:"")+"}";
+	}
+
+	TopicPattern getTopicPattern()
+	{
+		return topicPattern;
+	}
+
+	/*
+	 * Called by the watchdog when the handler repeatedly exceeded its time budget.
+	 * Runs already queued are not affected
+	 */
+	void quarantine(boolean disable)
+	{
+		if(disable)
+		{
+			L.severe("Removing event handler "+this+" after "+stats.getOverruns()+" overruns");
+			removeByID(id);
+		}
+		else
+		{
+			L.severe("Moving event handler "+this+" to the quarantine lane after "+stats.getOverruns()+" overruns");
+			partition=EventExecutor.forQuarantine();
+		}
+	}
+
+	public int getID()
+	{
+		return id;
+	}
+
+	public HandlerStats getStats()
+	{
+		return stats;
 	}
 
 	public String getCmdlineSummary()
@@ -224,6 +366,8 @@ public class EventHandler
 		s.append(changeOnly?"CH":"UP");
 		if(oneShot)
 			s.append("/OS");
+		if(pendingRuns!=null)
+			s.append("/CO");
 		s.append('\t');
 		if(expires==null)
 			s.append("CONT");
@@ -231,16 +375,24 @@ public class EventHandler
 			s.append(expires);
 		s.append('\t');
 		s.append(callback);
+		s.append('\t');
+		s.append(partition.name);
 
 		return s.toString();
 	}
 
 	private final int id;
-	private final Pattern topicPattern;
+	private final TopicPattern topicPattern;
 	private final Object destvalues[];
-	private final boolean changeOnly, oneShot;
+	private final DestValueMatcher destMatcher;
+	private final boolean changeOnly, oneShot, initial;
 	private final EventCallbackInterface callback;
 	private final String expires;
+	/* Pending executions per topic, if the handler coalesces them */
+	private final Map<String,EventRunner> pendingRuns;
+	/* Where the callback is run; per topic, callbacks are run in order */
+	private volatile EventExecutor.Partition partition;
+	private final HandlerStats stats=new HandlerStats();
 
 
 }
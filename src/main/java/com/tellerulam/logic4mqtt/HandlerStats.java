@@ -0,0 +1,184 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import com.eclipsesource.json.*;
+
+/*
+ * Execution statistics of an event handler: how long its callbacks waited in the event
+ * executor, how long they ran, and how often they were invoked, failed and exceeded
+ * the watchdog's time budget.
+ *
+ * If logic4mqtt.stats.interval is set (seconds, default 0 = off), the statistics of all
+ * handlers are published periodically as JSON under <prefix>/stats/events/<id>
+ */
+public class HandlerStats
+{
+	/*
+	 * HDR-style histogram of microsecond latencies. Values up to 15 have their own bucket,
+	 * above that each power of two is split into 8 linear sub-buckets, so percentiles are
+	 * accurate to 12.5%. Recording is lock-free
+	 */
+	static final class Histogram
+	{
+		private static final int SUB_BITS=3;
+		private static final int LINEAR=16;
+		private final AtomicLongArray counts=new AtomicLongArray(LINEAR+(64-4)*(1<<SUB_BITS));
+		private final AtomicLong max=new AtomicLong();
+
+		static int bucketOf(long v)
+		{
+			if(v<LINEAR)
+				return (int)Math.max(0,v);
+			int exp=63-Long.numberOfLeadingZeros(v);
+			int sub=(int)(v>>>(exp-SUB_BITS))&((1<<SUB_BITS)-1);
+			return LINEAR+((exp-4)<<SUB_BITS)+sub;
+		}
+
+		/* Smallest value falling into the bucket */
+		static long lowestOf(int bucket)
+		{
+			if(bucket<LINEAR)
+				return bucket;
+			int exp=((bucket-LINEAR)>>SUB_BITS)+4;
+			int sub=(bucket-LINEAR)&((1<<SUB_BITS)-1);
+			return (long)((1<<SUB_BITS)+sub)<<(exp-SUB_BITS);
+		}
+
+		void record(long micros)
+		{
+			counts.incrementAndGet(bucketOf(micros));
+			long m;
+			while(micros>(m=max.get()))
+				if(max.compareAndSet(m,micros))
+					break;
+		}
+
+		/*
+		 * The value at the given percentile (0..100), as the lower bound of its bucket
+		 */
+		long getPercentile(double percentile)
+		{
+			long total=0;
+			for(int ix=0;ix<counts.length();ix++)
+				total+=counts.get(ix);
+			if(total==0)
+				return 0;
+			long rank=Math.max(1,(long)Math.ceil(total*percentile/100));
+			long seen=0;
+			for(int ix=0;ix<counts.length();ix++)
+			{
+				seen+=counts.get(ix);
+				if(seen>=rank)
+					return Math.min(lowestOf(ix),max.get());
+			}
+			return max.get();
+		}
+
+		long getMax()
+		{
+			return max.get();
+		}
+
+		JsonObject toJson()
+		{
+			return new JsonObject().add("p50",getPercentile(50)).add("p99",getPercentile(99)).add("max",getMax());
+		}
+
+		@Override
+		public String toString()
+		{
+			return "p50="+getPercentile(50)+"us p99="+getPercentile(99)+"us max="+getMax()+"us";
+		}
+	}
+
+	final Histogram queueWait=new Histogram(), runTime=new Histogram();
+	private final AtomicLong invocations=new AtomicLong(), errors=new AtomicLong(), overruns=new AtomicLong();
+	/* Invocations in the last full minute */
+	private long lastInvocations;
+	private volatile long rate;
+
+	void record(long waitNanos,long runNanos,boolean failed)
+	{
+		queueWait.record(waitNanos/1000);
+		runTime.record(runNanos/1000);
+		invocations.incrementAndGet();
+		if(failed)
+			errors.incrementAndGet();
+	}
+
+	/*
+	 * Returns the number of overruns so far, including this one
+	 */
+	long recordOverrun()
+	{
+		return overruns.incrementAndGet();
+	}
+
+	private synchronized void roll()
+	{
+		long n=invocations.get();
+		rate=n-lastInvocations;
+		lastInvocations=n;
+	}
+
+	long getInvocations()
+	{
+		return invocations.get();
+	}
+
+	long getErrors()
+	{
+		return errors.get();
+	}
+
+	long getOverruns()
+	{
+		return overruns.get();
+	}
+
+	public String getCmdlineSummary()
+	{
+		return "count="+invocations.get()+"\terrors="+errors.get()+"\toverruns="+overruns.get()+"\trate="+rate+"/min\twait "+queueWait+"\trun "+runTime;
+	}
+
+	JsonObject toJson()
+	{
+		return new JsonObject().add("count",invocations.get()).add("errors",errors.get()).add("overruns",overruns.get()).add("rate",rate)
+			.add("wait",queueWait.toJson()).add("run",runTime.toJson());
+	}
+
+	private static void publishAll()
+	{
+		String prefix=MQTTHandler.getTopicPrefix()+"stats/events/";
+		for(EventHandler h:EventHandler.getAllHandlers())
+		{
+			JsonObject o=h.getStats().toJson();
+			o.add("pattern",h.getTopicPattern().toString());
+			MQTTHandler.doPublish(prefix+h.getID(),o.toString(),false);
+		}
+	}
+
+	static {
+		Main.t.schedule(new TimerTask(){
+			@Override
+			public void run()
+			{
+				for(EventHandler h:EventHandler.getAllHandlers())
+					h.getStats().roll();
+			}
+		},60*1000,60*1000);
+		long interval=Long.getLong("logic4mqtt.stats.interval",0).longValue()*1000;
+		if(interval>0)
+		{
+			PublishCombiner.publishTimer.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					publishAll();
+				}
+			},interval,interval);
+		}
+	}
+}
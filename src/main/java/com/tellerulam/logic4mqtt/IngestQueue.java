@@ -0,0 +1,140 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+/*
+ * Bounded ring buffer between the MQTT client callback thread and message processing,
+ * so a slow cache update or event dispatch does not stall the network reader.
+ *
+ * The overflow policy determines what happens when the buffer is full:
+ *   BLOCK       - the MQTT callback waits until there is room
+ *   DROPOLDEST  - the oldest queued message is discarded
+ *   COALESCE    - a queued message for the same topic is replaced by the new one;
+ *                 if there is none, the callback waits as with BLOCK
+ */
+public class IngestQueue
+{
+	enum OverflowPolicy
+	{
+		BLOCK, DROPOLDEST, COALESCE
+	}
+
+	interface Processor
+	{
+		void process(String topic,MqttMessage msg);
+	}
+
+	private final String topics[];
+	private final MqttMessage msgs[];
+	private final OverflowPolicy policy;
+	/* Slot of the most recently queued message per topic, only maintained with COALESCE */
+	private final Map<String,Integer> pendingByTopic;
+	private int head, count;
+
+	private long received, processed, dropped, coalesced, blocked;
+	private int maxDepth;
+
+	IngestQueue(int size,OverflowPolicy policy,final Processor processor)
+	{
+		topics=new String[size];
+		msgs=new MqttMessage[size];
+		this.policy=policy;
+		pendingByTopic=(policy==OverflowPolicy.COALESCE)?new HashMap<String,Integer>():null;
+		Thread t=new Thread("MQTT ingest"){
+			@Override
+			public void run()
+			{
+				for(;;)
+				{
+					String topic;
+					MqttMessage msg;
+					try
+					{
+						synchronized(IngestQueue.this)
+						{
+							while(count==0)
+								IngestQueue.this.wait();
+							topic=topics[head];
+							msg=msgs[head];
+							topics[head]=null;
+							msgs[head]=null;
+							if(pendingByTopic!=null)
+							{
+								Integer slot=pendingByTopic.get(topic);
+								if(slot!=null && slot.intValue()==head)
+									pendingByTopic.remove(topic);
+							}
+							head=(head+1)%topics.length;
+							count--;
+							processed++;
+							IngestQueue.this.notifyAll();
+						}
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+					try
+					{
+						processor.process(topic,msg);
+					}
+					catch(Exception e)
+					{
+						L.log(Level.WARNING,"Error when processing message "+msg+" for "+topic,e);
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	synchronized void put(String topic,MqttMessage msg) throws InterruptedException
+	{
+		received++;
+		while(count==topics.length)
+		{
+			if(policy==OverflowPolicy.DROPOLDEST)
+			{
+				topics[head]=null;
+				msgs[head]=null;
+				head=(head+1)%topics.length;
+				count--;
+				dropped++;
+				break;
+			}
+			if(policy==OverflowPolicy.COALESCE)
+			{
+				Integer slot=pendingByTopic.get(topic);
+				if(slot!=null)
+				{
+					msgs[slot.intValue()]=msg;
+					coalesced++;
+					return;
+				}
+			}
+			blocked++;
+			wait();
+		}
+		int tail=(head+count)%topics.length;
+		topics[tail]=topic;
+		msgs[tail]=msg;
+		if(pendingByTopic!=null)
+			pendingByTopic.put(topic,Integer.valueOf(tail));
+		count++;
+		if(count>maxDepth)
+			maxDepth=count;
+		notifyAll();
+	}
+
+	public synchronized String getCmdlineSummary()
+	{
+		return "policy="+policy+"\tsize="+topics.length+"\tdepth="+count+"\tmaxdepth="+maxDepth
+			+"\treceived="+received+"\tprocessed="+processed+"\tdropped="+dropped+"\tcoalesced="+coalesced+"\tblocked="+blocked;
+	}
+
+	private static final Logger L=Logger.getLogger(IngestQueue.class.getName());
+}
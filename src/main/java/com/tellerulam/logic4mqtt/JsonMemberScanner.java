@@ -0,0 +1,164 @@
+package com.tellerulam.logic4mqtt;
+
+/*
+ * Locates the value of a top level member of a JSON object directly in the encoded bytes,
+ * without building any object tree. Nested values are skipped, not validated.
+ *
+ * The position of a member value is returned as a packed long, with the start offset
+ * in the upper and the end offset (exclusive) in the lower 32 bits.
+ */
+class JsonMemberScanner
+{
+	/* The member does not exist */
+	static final long NOT_FOUND=-1;
+	/* The payload could not be scanned; callers should fall back to a full parse */
+	static final long MALFORMED=-2;
+
+	private JsonMemberScanner()
+	{
+		/* Keep private */
+	}
+
+	static int start(long span)
+	{
+		return (int)(span>>>32);
+	}
+
+	static int end(long span)
+	{
+		return (int)span;
+	}
+
+	/*
+	 * Like minimal-json, this returns the last member if the name occurs more than once
+	 */
+	static long findMember(byte p[],String name)
+	{
+		int ix=skipWhitespace(p,0);
+		if(ix>=p.length || p[ix]!='{')
+			return MALFORMED;
+		ix=skipWhitespace(p,ix+1);
+		long found=NOT_FOUND;
+		if(ix<p.length && p[ix]=='}')
+			return checkTrailer(p,ix+1,found);
+		for(;;)
+		{
+			if(ix>=p.length || p[ix]!='"')
+				return MALFORMED;
+			int nameStart=ix+1;
+			int nameEnd=skipString(p,ix);
+			if(nameEnd<0)
+				return MALFORMED;
+			boolean match=nameMatches(p,nameStart,nameEnd-1,name);
+			ix=skipWhitespace(p,nameEnd);
+			if(ix>=p.length || p[ix]!=':')
+				return MALFORMED;
+			int valStart=skipWhitespace(p,ix+1);
+			int valEnd=skipValue(p,valStart);
+			if(valEnd<0)
+				return MALFORMED;
+			if(match)
+				found=((long)valStart<<32)|valEnd;
+			ix=skipWhitespace(p,valEnd);
+			if(ix>=p.length)
+				return MALFORMED;
+			if(p[ix]=='}')
+				return checkTrailer(p,ix+1,found);
+			if(p[ix]!=',')
+				return MALFORMED;
+			ix=skipWhitespace(p,ix+1);
+		}
+	}
+
+	/*
+	 * Whether the two member values are byte-wise identical
+	 */
+	static boolean sameValue(byte p1[],long span1,byte p2[],long span2)
+	{
+		int len=end(span1)-start(span1);
+		if(len!=end(span2)-start(span2))
+			return false;
+		int o1=start(span1), o2=start(span2);
+		for(int ix=0;ix<len;ix++)
+			if(p1[o1+ix]!=p2[o2+ix])
+				return false;
+		return true;
+	}
+
+	private static long checkTrailer(byte p[],int ix,long found)
+	{
+		return skipWhitespace(p,ix)==p.length?found:MALFORMED;
+	}
+
+	private static boolean nameMatches(byte p[],int start,int end,String name)
+	{
+		if(end-start!=name.length())
+			return false;
+		for(int ix=0;ix<name.length();ix++)
+		{
+			// Escaped names never match; we only look for plain ASCII names
+			if(p[start+ix]!=name.charAt(ix))
+				return false;
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(byte p[],int ix)
+	{
+		while(ix<p.length && (p[ix]==' ' || p[ix]=='\t' || p[ix]=='\n' || p[ix]=='\r'))
+			ix++;
+		return ix;
+	}
+
+	/* Returns the offset after the closing quote, or -1 */
+	private static int skipString(byte p[],int ix)
+	{
+		for(ix++;ix<p.length;ix++)
+		{
+			if(p[ix]=='\\')
+				ix++;
+			else if(p[ix]=='"')
+				return ix+1;
+		}
+		return -1;
+	}
+
+	/* Returns the offset after the value, or -1 */
+	private static int skipValue(byte p[],int ix)
+	{
+		if(ix>=p.length)
+			return -1;
+		byte b=p[ix];
+		if(b=='"')
+			return skipString(p,ix);
+		if(b=='{' || b=='[')
+		{
+			int depth=0;
+			while(ix<p.length)
+			{
+				b=p[ix];
+				if(b=='"')
+				{
+					ix=skipString(p,ix);
+					if(ix<0)
+						return -1;
+					continue;
+				}
+				if(b=='{' || b=='[')
+					depth++;
+				else if(b=='}' || b==']')
+				{
+					if(--depth==0)
+						return ix+1;
+				}
+				ix++;
+			}
+			return -1;
+		}
+		// Number or literal
+		int start=ix;
+		while(ix<p.length && ",}] \t\r\n".indexOf(p[ix])<0)
+			ix++;
+		return ix>start?ix:-1;
+	}
+}
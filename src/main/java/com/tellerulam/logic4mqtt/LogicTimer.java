@@ -80,6 +80,8 @@ public abstract class LogicTimer
 	protected final String timespec;
 	protected final TimerCallbackInterface callback;
 	protected final Object userdata;
+	/* Partition of the code which added the timer, for handlers added by the callback */
+	private final EventExecutor.Partition owner;
 
 	protected boolean canceled;
 	protected TimerTask currentTimerTask;
@@ -115,6 +117,7 @@ public abstract class LogicTimer
 		this.timespec=timespec;
 		this.callback=callback;
 		this.userdata=userdata;
+		this.owner=EventExecutor.getCurrent();
 	}
 
 	static final Timer t=new Timer(true);
@@ -123,6 +126,8 @@ public abstract class LogicTimer
 
 	void runCallback()
 	{
+		EventExecutor.Partition prev=EventExecutor.setCurrent(owner);
+		Watchdog.Running w=Watchdog.begin(null,"timer "+symbolicName);
 		try
 		{
 			callback.run(userdata);
@@ -131,5 +136,10 @@ public abstract class LogicTimer
 		{
 			L.log(Level.WARNING,"Error when executing timer callback",t);
 		}
+		finally
+		{
+			Watchdog.end(w);
+			EventExecutor.setCurrent(prev);
+		}
 	}
 }
@@ -1,8 +1,11 @@
 package com.tellerulam.logic4mqtt;
 
+import java.io.*;
 import java.nio.charset.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
 import org.eclipse.paho.client.mqttv3.*;
@@ -32,77 +35,197 @@ public class MQTTHandler
 				tp+="/";
 			topicPrefix=tp;
 		}
+		subscribeHandlersOnly="handlers".equalsIgnoreCase(System.getProperty("logic4mqtt.mqtt.subscriptions","all"));
+		// Our own global state variables are always of interest
+		cacheFilters.add(topicPrefix+"status/#");
+		String ct=System.getProperty("logic4mqtt.mqtt.cachetopics");
+		if(ct!=null)
+		{
+			for(String p:ct.split(","))
+			{
+				p=p.trim();
+				if(!p.isEmpty())
+					cacheFilters.add(TopicPattern.compile(TopicCache.convertStatusTopic(p)).getCoveringFilter());
+			}
+		}
 	}
 
-	private MqttClient mqttc;
+	/*
+	 * Unless logic4mqtt.mqtt.subscriptions=handlers is set, we subscribe to everything.
+	 * Otherwise, subscriptions are derived from the patterns of the active event handlers
+	 * plus the topics listed in logic4mqtt.mqtt.cachetopics
+	 */
+	private final boolean subscribeHandlersOnly;
+	private final List<String> cacheFilters=new ArrayList<>();
+	/* The filters we are currently subscribed to, guarded by itself */
+	private final Set<String> subscriptions=new HashSet<>();
+	private boolean subscriptionUpdatePending;
+	/*
+	 * Serializes subscription updates, which wait for the broker. Taken before the handler
+	 * lock and never while holding "subscriptions" or the handler lock
+	 */
+	private final Object subscriptionUpdateLock=new Object();
 
-	private void queueConnect()
+	private Set<String> computeSubscriptions()
 	{
-		shouldBeConnected=false;
+		if(!subscribeHandlersOnly)
+			return Collections.singleton("#");
+		List<String> filters=new ArrayList<>(cacheFilters);
+		for(EventHandler h:EventHandler.getAllHandlers())
+			filters.add(h.getTopicPattern().getCoveringFilter());
+		return TopicPattern.minimizeFilters(filters);
+	}
+
+	/*
+	 * Called whenever event handlers have been added or removed. The actual update is deferred
+	 * a bit, so that adding a lot of handlers (e.g. during script startup) is handled in one go
+	 */
+	static void queueSubscriptionUpdate()
+	{
+		final MQTTHandler h=instance;
+		if(h==null || !h.subscribeHandlersOnly)
+			return;
+		synchronized(h.subscriptions)
+		{
+			if(h.subscriptionUpdatePending)
+				return;
+			h.subscriptionUpdatePending=true;
+		}
 		Main.t.schedule(new TimerTask(){
 			@Override
 			public void run()
 			{
-				doConnect();
+				synchronized(h.subscriptions)
+				{
+					h.subscriptionUpdatePending=false;
+				}
+				h.updateSubscriptions();
 			}
-		},10*1000);
+		},100);
 	}
 
-	private class StateChecker extends TimerTask
+	private void updateSubscriptions()
 	{
-		@Override
-		public void run()
+		if(!mqttc.isConnected())
+			return; // Will be done on (re)connect
+		try
 		{
-			if(!mqttc.isConnected() && shouldBeConnected)
-			{
-				L.warning("Should be connected but aren't, reconnecting");
-				queueConnect();
-			}
+			syncSubscriptions(false);
+		}
+		catch(MqttException mqe)
+		{
+			L.log(Level.WARNING,"Error updating subscriptions",mqe);
 		}
 	}
 
-	private boolean shouldBeConnected;
-
-	private Object convertStringToObject(String val)
+	/*
+	 * Subscribes and unsubscribes as needed for the current handlers. With "reset", all
+	 * filters are considered unsubscribed
+	 */
+	private void syncSubscriptions(boolean reset) throws MqttException
 	{
-		// Try double?
-		if(val.indexOf('.')>=0)
+		synchronized(subscriptionUpdateLock)
 		{
-			try
+			// Takes the handler lock, so not while holding "subscriptions"
+			Set<String> wanted=computeSubscriptions();
+			Set<String> added=new HashSet<>(wanted);
+			Set<String> removed;
+			synchronized(subscriptions)
 			{
-				return Double.valueOf(val);
+				if(reset)
+					subscriptions.clear();
+				added.removeAll(subscriptions);
+				removed=new HashSet<>(subscriptions);
 			}
-			catch(NumberFormatException nfe)
+			removed.removeAll(wanted);
+			// Subscribe first, so there is no gap in coverage
+			if(!added.isEmpty())
 			{
-				// Ok, not a double, can't be an Integer, can't be true/false, treat as String
-				return val;
+				subscribe(added);
+				synchronized(subscriptions)
+				{
+					subscriptions.addAll(added);
+				}
+			}
+			if(!removed.isEmpty())
+			{
+				L.info("Unsubscribing from "+removed);
+				mqttc.unsubscribe(removed.toArray(new String[removed.size()])).waitForCompletion();
+				synchronized(subscriptions)
+				{
+					subscriptions.removeAll(removed);
+				}
 			}
 		}
-		// TODO: do we really want to do that?
-		if("true".equalsIgnoreCase(val))
-			return Boolean.TRUE;
-		if("false".equalsIgnoreCase(val))
-			return Boolean.FALSE;
-		// Try Integer
-		try
-		{
-			return Integer.valueOf(val);
-		}
-		catch(NumberFormatException nfe2)
-		{
-			// Not an Integer; maybe a Double in scientific notation without a decimal point?
-			try
+	}
+
+	private void subscribe(Collection<String> filters) throws MqttException
+	{
+		L.info("Subscribing to "+filters);
+		String f[]=filters.toArray(new String[filters.size()]);
+		int qos[]=new int[f.length];
+		// With a persistent session, we want the broker to queue messages for us while we're away
+		Arrays.fill(qos,persistentSession?1:0);
+		mqttc.subscribe(f,qos).waitForCompletion();
+	}
+
+	private MqttAsyncClient mqttc;
+	/*
+	 * With logic4mqtt.mqtt.persistentsession=true, we connect without the clean session flag
+	 * and keep the client state in a local file store. Make sure logic4mqtt.mqtt.clientid is
+	 * unique and stable in that case
+	 */
+	private final boolean persistentSession=Boolean.getBoolean("logic4mqtt.mqtt.persistentsession");
+	private IngestQueue ingestQueue;
+
+	/*
+	 * The queue between the MQTT client and message processing, or null if messages
+	 * are processed directly in the MQTT client callback
+	 */
+	public static IngestQueue getIngestQueue()
+	{
+		return instance.ingestQueue;
+	}
+
+	/*
+	 * Reconnect attempts are delayed with a randomized exponential backoff, starting at
+	 * logic4mqtt.mqtt.reconnectdelay and capped at logic4mqtt.mqtt.maxreconnectdelay (both in ms)
+	 */
+	private final long reconnectDelay=Long.getLong("logic4mqtt.mqtt.reconnectdelay",1000).longValue();
+	private final long maxReconnectDelay=Long.getLong("logic4mqtt.mqtt.maxreconnectdelay",5*60*1000).longValue();
+	private int reconnectAttempts;
+
+	private void queueConnect()
+	{
+		shouldBeConnected=false;
+		long delay=Math.min(maxReconnectDelay,reconnectDelay<<Math.min(reconnectAttempts++,20));
+		// Jitter between 50% and 100% of the delay, so a fleet of clients doesn't reconnect in lockstep
+		delay=delay/2+(long)(Main.r.nextDouble()*(delay/2));
+		L.info("Reconnecting in "+delay+"ms");
+		Main.t.schedule(new TimerTask(){
+			@Override
+			public void run()
 			{
-				return Double.valueOf(val);
+				doConnect();
 			}
-			catch(NumberFormatException nfe3)
+		},delay);
+	}
+
+	private class StateChecker extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			if(!mqttc.isConnected() && shouldBeConnected)
 			{
-				// String it is, then
-				return val;
+				L.warning("Should be connected but aren't, reconnecting");
+				queueConnect();
 			}
 		}
 	}
 
+	private boolean shouldBeConnected;
+
 	static protected Object convertJsonToJavaObjectTree(JsonValue v)
 	{
 		if(v.isArray())
@@ -135,48 +258,29 @@ public class MQTTHandler
 			return v.toString();
 	}
 
-	void processMessage(String topic,MqttMessage msg)
+	void processMessage(String topicName,MqttMessage msg)
 	{
-		L.fine("Received "+msg+" to "+topic);
-
-		// Determine whether the payload is JSON encoded or not
-		String payload=new String(msg.getPayload(),StandardCharsets.UTF_8);
-		String trimmedPayload=payload.trim();
-		Object transformedVal,fullValue;
-
-		if(trimmedPayload.startsWith("{"))
-		{
-			JsonObject data=Json.parse(payload).asObject();
-			fullValue=convertJsonToJavaObjectTree(data);
-			JsonValue val=data.get("val");
-			if(val==null)
-				transformedVal=fullValue;
-			else if(val.isNumber())
-				transformedVal=Double.valueOf(val.asDouble());
-			else if(val.isString())
-				transformedVal=val.asString();
-			else if(val.isBoolean())
-				transformedVal=Integer.valueOf(val.asBoolean()?1:0);
-			else if(val.isNull())
-				transformedVal=null;
-			else
-				transformedVal=val.toString();
-		}
-		else if(trimmedPayload.startsWith("["))
-		{
-			JsonArray data=Json.parse(payload).asArray();
-			fullValue=transformedVal=convertJsonToJavaObjectTree(data);
-		}
-		else
-		{
-			transformedVal=convertStringToObject(payload);
-			fullValue=null;
-		}
+		if(L.isLoggable(Level.FINE))
+			L.fine("Received "+msg+" to "+topicName);
+		// Retained messages resent by the broker (e.g. after reconnecting) which we already know
+		if(msg.isRetained() && TopicCache.hasCurrentPayload(topicName,msg.getPayload()))
+			return;
 
-		TopicCache t=TopicCache.storeTopic(topic,transformedVal,fullValue);
-		// If this is a retained message, do not dispatch an event
+		// Decoding the payload is deferred until somebody is actually interested in the value
+		TopicCache.Snapshot t=TopicCache.storeTopic(topicName,msg.getPayload());
+		TopicHandle topic=t.getTopic();
+		/*
+		 * If this is a retained message, do not dispatch an event. When subscriptions follow
+		 * the handlers, it is however the initial value for handlers which were added before
+		 * we subscribed to the topic. A value equal to the one restored from the snapshot
+		 * file has already been seen by those handlers
+		 */
 		if(msg.isRetained())
+		{
+			if(subscribeHandlersOnly && t.isFirstValue() && !t.wasRefreshed())
+				EventHandler.dispatchInitialEvent(topic,t);
 			return;
+		}
 		EventHandler.dispatchEvent(topic,t);
 	}
 
@@ -186,16 +290,25 @@ public class MQTTHandler
 
 		MqttConnectOptions copts=new MqttConnectOptions();
 		copts.setWill(topicPrefix+"connected", "0".getBytes(), 2, true);
-		copts.setCleanSession(true);
+		copts.setCleanSession(!persistentSession);
 		try
 		{
-			mqttc.connect(copts);
-			mqttc.publish(topicPrefix+"connected", "2".getBytes(), 1, true);
-			L.info("Successfully connected to broker, subscribing to #");
+			IMqttToken connectToken=mqttc.connect(copts);
+			connectToken.waitForCompletion();
+			mqttc.publish(topicPrefix+"connected", "2".getBytes(), 1, true).waitForCompletion();
+			boolean sessionPresent=persistentSession && connectToken.getSessionPresent();
+			L.info("Successfully connected to broker"+(sessionPresent?", resuming session":""));
+			reconnectAttempts=0;
 			try
 			{
-				mqttc.subscribe("#",0);
+				/*
+				 * If the broker still has our session, the subscriptions we made during this
+				 * run still exist. Not subscribing again avoids the broker resending all
+				 * retained messages
+				 */
+				syncSubscriptions(!sessionPresent);
 				shouldBeConnected=true;
+				replayJournal();
 			}
 			catch(MqttException mqe)
 			{
@@ -214,11 +327,53 @@ public class MQTTHandler
 	{
 		String server=System.getProperty("logic4mqtt.mqtt.server","tcp://localhost:1883");
 		String clientID=System.getProperty("logic4mqtt.mqtt.clientid","logic4mqtt");
-		mqttc=new MqttClient(server,clientID,new MemoryPersistence());
+		int queueSize=Integer.getInteger("logic4mqtt.ingest.queuesize",0).intValue();
+		if(queueSize>0)
+		{
+			IngestQueue.OverflowPolicy policy=IngestQueue.OverflowPolicy.valueOf(System.getProperty("logic4mqtt.ingest.overflow","block").toUpperCase());
+			// QoS 1 messages are acknowledged when queued, dropping them would lose them for good
+			if(persistentSession && policy!=IngestQueue.OverflowPolicy.BLOCK)
+			{
+				L.warning("logic4mqtt.ingest.overflow="+policy.name().toLowerCase()+" may drop acknowledged QoS 1 messages, using block with a persistent session");
+				policy=IngestQueue.OverflowPolicy.BLOCK;
+			}
+			ingestQueue=new IngestQueue(queueSize,policy,new IngestQueue.Processor(){
+				@Override
+				public void process(String topic,MqttMessage msg)
+				{
+					processMessage(topic,msg);
+				}
+			});
+		}
+		String journalDir=System.getProperty("logic4mqtt.journal.dir");
+		if(journalDir!=null)
+		{
+			try
+			{
+				outboundJournal=new OutboundJournal(new File(journalDir),
+					Integer.getInteger("logic4mqtt.journal.segmentsize",1024*1024).intValue(),
+					Long.getLong("logic4mqtt.journal.ttl",3600).longValue()*1000);
+			}
+			catch(IOException e)
+			{
+				L.log(Level.SEVERE,"Unable to open outbound journal in "+journalDir+", continuing without",e);
+			}
+		}
+		MqttClientPersistence persistence;
+		if(persistentSession)
+			persistence=new MqttDefaultFilePersistence(System.getProperty("logic4mqtt.mqtt.persistencedir","mqtt-persistence"));
+		else
+			persistence=new MemoryPersistence();
+		mqttc=new MqttAsyncClient(server,clientID,persistence);
 		mqttc.setCallback(new MqttCallback() {
 			@Override
 			public void messageArrived(String topic, MqttMessage msg) throws Exception
 			{
+				if(ingestQueue!=null)
+				{
+					ingestQueue.put(topic,msg);
+					return;
+				}
 				try
 				{
 					processMessage(topic,msg);
@@ -256,14 +411,124 @@ public class MQTTHandler
 		MqttMessage msg=new MqttMessage(valstr.getBytes(StandardCharsets.UTF_8));
 		msg.setQos(0);
 		msg.setRetained(retain);
+		instance.publishCombiner.publish(name,msg,valstr);
+	}
+
+	private final PublishCombiner publishCombiner=new PublishCombiner(new PublishCombiner.Sender(){
+		@Override
+		public void send(String topic,MqttMessage msg,String logValue)
+		{
+			publish(topic,msg,logValue);
+		}
+	},Long.getLong("logic4mqtt.mqtt.dedupwindow",0).longValue(),Long.getLong("logic4mqtt.mqtt.mergewindow",0).longValue());
+
+	public static PublishCombiner getPublishCombiner()
+	{
+		return instance.publishCombiner;
+	}
+
+	/*
+	 * With logic4mqtt.mqtt.asyncpublish=true, publishes do not wait for the broker. Instead,
+	 * up to logic4mqtt.mqtt.publishwindow publishes may be in flight at any time; only
+	 * when the window is full, the publishing thread has to wait
+	 */
+	private final boolean asyncPublish=Boolean.getBoolean("logic4mqtt.mqtt.asyncpublish");
+	private final Semaphore publishWindow=new Semaphore(Integer.getInteger("logic4mqtt.mqtt.publishwindow",8).intValue());
+
+	private final IMqttActionListener publishListener=new IMqttActionListener(){
+		@Override
+		public void onSuccess(IMqttToken token)
+		{
+			publishWindow.release();
+		}
+		@Override
+		public void onFailure(IMqttToken token,Throwable t)
+		{
+			publishWindow.release();
+			String topic=token.getTopics()[0];
+			if(!journal(topic,(MqttMessage)token.getUserContext()))
+				L.log(Level.WARNING,"Error when publishing message to "+topic,t);
+		}
+	};
+
+	/*
+	 * If logic4mqtt.journal.dir is set, publishes which can't be delivered are stored
+	 * in a journal in that directory and sent once the connection is (re)established
+	 */
+	private OutboundJournal outboundJournal;
+	/* Whether a replay is already scheduled */
+	private final AtomicBoolean replayPending=new AtomicBoolean();
+
+	private boolean journal(String topic,MqttMessage msg)
+	{
+		if(outboundJournal==null)
+			return false;
 		try
 		{
-			instance.mqttc.publish(name, msg);
-			instance.L.info("Published "+valstr+" to "+name);
+			outboundJournal.append(topic,msg);
+			L.info("Broker not available, journaled publish to "+topic);
+			// We may have raced with a replay
+			if(mqttc.isConnected() && replayPending.compareAndSet(false,true))
+			{
+				PublishCombiner.publishTimer.schedule(new TimerTask(){
+					@Override
+					public void run()
+					{
+						replayPending.set(false);
+						replayJournal();
+					}
+				},1000);
+			}
+			return true;
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to journal publish to "+topic,e);
+			return false;
+		}
+	}
+
+	private void replayJournal()
+	{
+		if(outboundJournal==null)
+			return;
+		outboundJournal.replay(new OutboundJournal.Sender(){
+			@Override
+			public void send(String topic,MqttMessage msg) throws MqttException
+			{
+				mqttc.publish(topic,msg).waitForCompletion();
+			}
+		});
+	}
+
+	private void publish(String name,MqttMessage msg,String logValue)
+	{
+		// Keep the order of publishes if there are still journaled ones
+		if(outboundJournal!=null && (!mqttc.isConnected() || outboundJournal.hasPending()) && journal(name,msg))
+			return;
+		try
+		{
+			if(asyncPublish)
+			{
+				publishWindow.acquireUninterruptibly();
+				try
+				{
+					mqttc.publish(name,msg,msg,publishListener);
+				}
+				catch(MqttException e)
+				{
+					publishWindow.release();
+					throw e;
+				}
+			}
+			else
+				mqttc.publish(name,msg).waitForCompletion();
+			L.info("Published "+logValue+" to "+name);
 		}
 		catch(MqttException e)
 		{
-			instance.L.log(Level.WARNING,"Error when publishing message",e);
+			if(!journal(name,msg))
+				L.log(Level.WARNING,"Error when publishing message",e);
 		}
 	}
 
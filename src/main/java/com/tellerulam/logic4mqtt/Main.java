@@ -61,6 +61,8 @@ public class Main
 		SyslogHandler.readConfig();
 		Logger.getLogger(Main.class.getName()).info("logic4mqtt V"+getVersion()+" (C) 2015 Oliver Wagner <owagner@tellerulam.com>");
 		CmdlineHandler.init();
+		CacheSnapshotFile.init();
+		SharedCacheFile.init();
 		MQTTHandler.init();
 		String scriptDirs=System.getProperty("logic4mqtt.scripts.dir","scripts");
 		for(String scriptDir:scriptDirs.split(":"))
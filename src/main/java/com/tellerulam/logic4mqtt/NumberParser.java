@@ -0,0 +1,229 @@
+package com.tellerulam.logic4mqtt;
+
+import java.nio.charset.*;
+
+/*
+ * Classifies and parses numbers without throwing exceptions, with exactly the results of
+ * Integer.valueOf() and Double.valueOf(). Plain decimal and scientific notation is handled
+ * here; the rare forms which are not (hexadecimal floating point, "NaN", "Infinity" and
+ * non-ASCII digits) are passed on to the JDK methods.
+ *
+ * Decimals whose significant digits fit into 53 bits and which have a small exponent are
+ * converted with a single exact multiplication or division, which is correctly rounded;
+ * all other valid decimals are converted with Double.parseDouble().
+ */
+final class NumberParser
+{
+	private NumberParser()
+	{
+		/* Keep private */
+	}
+
+	private static final double POW10[]={
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/* Largest mantissa which is exactly representable as a double */
+	private static final long MAX_EXACT=1L<<53;
+
+	/*
+	 * Bytes of an ASCII-only payload, viewed as chars without decoding them
+	 */
+	static final class AsciiChars implements CharSequence
+	{
+		private final byte b[];
+
+		AsciiChars(byte b[])
+		{
+			this.b=b;
+		}
+
+		/*
+		 * Whether the bytes can be viewed as chars
+		 */
+		static boolean isAscii(byte b[])
+		{
+			for(byte c:b)
+				if(c<0)
+					return false;
+			return true;
+		}
+
+		@Override
+		public int length()
+		{
+			return b.length;
+		}
+
+		@Override
+		public char charAt(int index)
+		{
+			return (char)b[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start,int end)
+		{
+			return toString().substring(start,end);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new String(b,StandardCharsets.US_ASCII);
+		}
+	}
+
+	/*
+	 * Same as Integer.valueOf(s) if that succeeds, otherwise Double.valueOf(s), or null
+	 * if both would throw a NumberFormatException
+	 */
+	static Number parseNumber(CharSequence s)
+	{
+		return parse(s,true);
+	}
+
+	/*
+	 * Same as Double.valueOf(s), or null if that would throw a NumberFormatException
+	 */
+	static Double parseDouble(CharSequence s)
+	{
+		return (Double)parse(s,false);
+	}
+
+	private static Number parse(CharSequence s,boolean intAllowed)
+	{
+		int len=s.length();
+		// Double.valueOf() ignores the same whitespace as String.trim(), Integer.valueOf() none
+		int start=0, end=len;
+		while(start<end && s.charAt(start)<=' ')
+			start++;
+		while(end>start && s.charAt(end-1)<=' ')
+			end--;
+		if(start==end)
+			return null;
+		int ix=start;
+		char c=s.charAt(ix);
+		boolean neg=false;
+		if(c=='+' || c=='-')
+		{
+			neg=(c=='-');
+			if(++ix==end)
+				return null;
+		}
+		long mant=0;
+		int digits=0, significant=0, exp10=0;
+		boolean dot=false, exact=true;
+		for(;ix<end;ix++)
+		{
+			c=s.charAt(ix);
+			if(c>='0' && c<='9')
+			{
+				digits++;
+				if(significant<18)
+				{
+					mant=mant*10+(c-'0');
+					if(mant!=0)
+						significant++;
+					if(dot)
+						exp10--;
+				}
+				else
+					exact=false;
+			}
+			else if(c=='.' && !dot)
+				dot=true;
+			else
+				break;
+		}
+		if(digits==0)
+		{
+			// "NaN", "Infinity", or digits Integer.valueOf() accepts, but we don't know
+			if(!dot && (c=='N' || c=='I' || (intAllowed && c>=0x80)))
+				return fallback(s,intAllowed);
+			return null;
+		}
+		boolean hasExp=false;
+		if(ix<end && (c=='e' || c=='E'))
+		{
+			hasExp=true;
+			if(++ix==end)
+				return null;
+			c=s.charAt(ix);
+			boolean expNeg=false;
+			if(c=='+' || c=='-')
+			{
+				expNeg=(c=='-');
+				if(++ix==end)
+					return null;
+			}
+			int exp=0, expDigits=0;
+			for(;ix<end;ix++)
+			{
+				c=s.charAt(ix);
+				if(c<'0' || c>'9')
+					break;
+				expDigits++;
+				// Far out of range anyway, only has to stay that way
+				if(exp<100000)
+					exp=exp*10+(c-'0');
+			}
+			if(expDigits==0)
+				return null;
+			exp10+=expNeg?-exp:exp;
+		}
+		boolean hasSuffix=false;
+		if(ix<end && (c=='f' || c=='F' || c=='d' || c=='D'))
+		{
+			hasSuffix=true;
+			ix++;
+		}
+		if(ix<end)
+		{
+			// Hexadecimal floating point, or trailing digits Integer.valueOf() accepts
+			if((c=='x' || c=='X') && digits==1 && mant==0 && !dot && !hasExp && !hasSuffix)
+				return fallback(s,intAllowed);
+			if(intAllowed && c>=0x80 && !dot && !hasExp && !hasSuffix)
+				return fallback(s,intAllowed);
+			return null;
+		}
+		if(intAllowed && exact && !dot && !hasExp && !hasSuffix && start==0 && end==len)
+		{
+			long v=neg?-mant:mant;
+			if(v>=Integer.MIN_VALUE && v<=Integer.MAX_VALUE)
+				return Integer.valueOf((int)v);
+		}
+		if(exact && mant<=MAX_EXACT && exp10>=-22 && exp10<=22)
+		{
+			double d=exp10>=0?mant*POW10[exp10]:mant/POW10[-exp10];
+			return Double.valueOf(neg?-d:d);
+		}
+		// Valid, but not exactly convertible here
+		return Double.valueOf(Double.parseDouble(s.subSequence(start,end).toString()));
+	}
+
+	private static Number fallback(CharSequence s,boolean intAllowed)
+	{
+		String str=s.toString();
+		if(intAllowed)
+		{
+			try
+			{
+				return Integer.valueOf(str);
+			}
+			catch(NumberFormatException e)
+			{
+				/* Try Double below */
+			}
+		}
+		try
+		{
+			return Double.valueOf(str);
+		}
+		catch(NumberFormatException e)
+		{
+			return null;
+		}
+	}
+}
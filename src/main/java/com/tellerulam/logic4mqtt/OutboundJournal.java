@@ -0,0 +1,221 @@
+package com.tellerulam.logic4mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+/*
+ * Append-only journal of publishes which could not be delivered because the broker
+ * was not available. It is kept in memory-mapped segment files, so it survives a restart.
+ *
+ * Record layout (big endian):
+ *   int    length of the remainder of the record; 0 marks the end of a segment
+ *   long   time of the publish, ms since the epoch
+ *   byte   flags (bit 0: retained)
+ *   short  length of the UTF-8 encoded topic
+ *   byte[] topic
+ *   byte[] payload (the remainder)
+ *
+ * The length is written last, so an incompletely written record is never seen.
+ *
+ * On replay, only the newest record per topic is sent, and records older than the TTL
+ * are skipped. Records are replayed with QoS 1, so they are not lost if the connection
+ * fails again. Once everything was delivered, all segments are removed.
+ */
+class OutboundJournal
+{
+	interface Sender
+	{
+		void send(String topic,MqttMessage msg) throws MqttException;
+	}
+
+	private static final String SEGMENT_PREFIX="outbound-";
+	private static final String SEGMENT_SUFFIX=".journal";
+	private static final int RECORD_HEADER=4+8+1+2;
+
+	private final File dir;
+	private final int segmentSize;
+	private final long ttl;
+	private MappedByteBuffer current;
+	private int nextSegment;
+	private int pending;
+
+	OutboundJournal(File dir,int segmentSize,long ttl) throws IOException
+	{
+		this.dir=dir;
+		this.segmentSize=segmentSize;
+		this.ttl=ttl;
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create journal directory "+dir);
+		List<File> segments=getSegments();
+		for(File f:segments)
+		{
+			int num=Integer.parseInt(f.getName().substring(SEGMENT_PREFIX.length(),f.getName().length()-SEGMENT_SUFFIX.length()));
+			nextSegment=Math.max(nextSegment,num+1);
+			pending+=readSegment(f,null);
+		}
+		if(pending>0)
+			L.info("Outbound journal in "+dir+" contains "+pending+" undelivered publishes");
+	}
+
+	private List<File> getSegments()
+	{
+		File files[]=dir.listFiles();
+		List<File> segments=new ArrayList<>();
+		if(files!=null)
+		{
+			for(File f:files)
+			{
+				String name=f.getName();
+				if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+					segments.add(f);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	synchronized boolean hasPending()
+	{
+		return pending>0;
+	}
+
+	synchronized void append(String topic,MqttMessage msg) throws IOException
+	{
+		byte topicBytes[]=topic.getBytes(StandardCharsets.UTF_8);
+		byte payload[]=msg.getPayload();
+		int len=RECORD_HEADER+topicBytes.length+payload.length;
+		// Always leave room for the terminating 0 length
+		if(current==null || current.remaining()<len+4)
+			current=newSegment(Math.max(segmentSize,len+4));
+		int start=current.position();
+		current.position(start+4);
+		current.putLong(System.currentTimeMillis());
+		current.put((byte)(msg.isRetained()?1:0));
+		current.putShort((short)topicBytes.length);
+		current.put(topicBytes);
+		current.put(payload);
+		current.putInt(start,len-4);
+		pending++;
+	}
+
+	private MappedByteBuffer newSegment(int size) throws IOException
+	{
+		String name=String.format("%s%010d%s",SEGMENT_PREFIX,Integer.valueOf(nextSegment++),SEGMENT_SUFFIX);
+		try(FileChannel fc=FileChannel.open(new File(dir,name).toPath(),StandardOpenOption.CREATE_NEW,StandardOpenOption.READ,StandardOpenOption.WRITE))
+		{
+			return fc.map(FileChannel.MapMode.READ_WRITE,0,size);
+		}
+	}
+
+	private static class Record
+	{
+		final long ts;
+		final MqttMessage msg;
+		Record(long ts,MqttMessage msg)
+		{
+			this.ts=ts;
+			this.msg=msg;
+		}
+	}
+
+	/*
+	 * Reads all records of a segment into "records" (if not null), keyed by topic in order
+	 * of their last occurrence. Returns the number of records
+	 */
+	private static int readSegment(File f,Map<String,Record> records) throws IOException
+	{
+		int count=0;
+		try(FileChannel fc=FileChannel.open(f.toPath(),StandardOpenOption.READ))
+		{
+			MappedByteBuffer b=fc.map(FileChannel.MapMode.READ_ONLY,0,fc.size());
+			while(b.remaining()>=4)
+			{
+				int len=b.getInt();
+				if(len<=0 || len>b.remaining())
+					break;
+				count++;
+				if(records==null)
+				{
+					b.position(b.position()+len);
+					continue;
+				}
+				long ts=b.getLong();
+				boolean retained=(b.get()&1)!=0;
+				byte topicBytes[]=new byte[b.getShort()&0xffff];
+				b.get(topicBytes);
+				byte payload[]=new byte[len-(RECORD_HEADER-4)-topicBytes.length];
+				b.get(payload);
+				MqttMessage msg=new MqttMessage(payload);
+				msg.setQos(1);
+				msg.setRetained(retained);
+				String topic=new String(topicBytes,StandardCharsets.UTF_8);
+				records.remove(topic);
+				records.put(topic,new Record(ts,msg));
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Sends all journaled publishes. Publishes which are journaled while the replay
+	 * is running are blocked until it's finished, so ordering is maintained.
+	 * Returns false if sending failed; the journal is kept in that case
+	 */
+	synchronized boolean replay(Sender sender)
+	{
+		if(pending==0)
+			return true;
+		List<File> segments=getSegments();
+		Map<String,Record> records=new LinkedHashMap<>();
+		try
+		{
+			for(File f:segments)
+				readSegment(f,records);
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to read outbound journal, keeping it",e);
+			return false;
+		}
+		long now=System.currentTimeMillis();
+		int sent=0, expired=0;
+		for(Map.Entry<String,Record> me:records.entrySet())
+		{
+			Record r=me.getValue();
+			if(ttl>0 && now-r.ts>ttl)
+			{
+				expired++;
+				continue;
+			}
+			try
+			{
+				sender.send(me.getKey(),r.msg);
+				sent++;
+			}
+			catch(MqttException e)
+			{
+				L.log(Level.WARNING,"Replaying outbound journal failed after "+sent+" publishes, will retry later",e);
+				return false;
+			}
+		}
+		L.info("Replayed outbound journal: "+sent+" publishes sent, "+expired+" expired, "+(pending-sent-expired)+" superseded");
+		// Everything was delivered, so the segments can go
+		current=null;
+		for(File f:segments)
+		{
+			if(!f.delete())
+				L.warning("Unable to remove journal segment "+f);
+		}
+		pending=0;
+		return true;
+	}
+
+	private static final Logger L=Logger.getLogger(OutboundJournal.class.getName());
+}
@@ -0,0 +1,176 @@
+package com.tellerulam.logic4mqtt;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.logging.*;
+
+import com.eclipsesource.json.*;
+
+/*
+ * Converts raw MQTT payloads into the simple value and the full value passed to scripts.
+ *
+ * Payloads starting with "{" or "[" are considered JSON encoded. For JSON objects,
+ * the simple value is the "val" member, if present. All other payloads are converted
+ * into a Number or Boolean if possible, or kept as a String.
+ */
+class PayloadDecoder
+{
+	static final byte TYPE_PLAIN=0;
+	static final byte TYPE_OBJECT='{';
+	static final byte TYPE_ARRAY='[';
+
+	private PayloadDecoder()
+	{
+		/* Keep private */
+	}
+
+	/*
+	 * Determine the payload type from the first non-whitespace byte
+	 */
+	static byte typeHint(byte payload[])
+	{
+		for(byte b:payload)
+		{
+			if(b==TYPE_OBJECT || b==TYPE_ARRAY)
+				return b;
+			// Same notion of whitespace as String.trim()
+			if((b&0xff)>' ')
+				break;
+		}
+		return TYPE_PLAIN;
+	}
+
+	/*
+	 * Returns the pair { simple value, full value }. For JSON objects, "valSpan" is the
+	 * result of locating the "val" member with the JsonMemberScanner
+	 */
+	static Object[] decode(byte payload[],byte typeHint,long valSpan)
+	{
+		if(typeHint==TYPE_OBJECT && valSpan>=0)
+		{
+			// Only parse the "val" member, and leave the rest until it's actually accessed
+			int start=JsonMemberScanner.start(valSpan);
+			JsonValue val=Json.parse(new String(payload,start,JsonMemberScanner.end(valSpan)-start,StandardCharsets.UTF_8));
+			return new Object[]{convertVal(val),new LazyJsonObject(payload)};
+		}
+		String s=new String(payload,StandardCharsets.UTF_8);
+		if(typeHint==TYPE_OBJECT)
+		{
+			JsonObject data=Json.parse(s).asObject();
+			Object fullValue=MQTTHandler.convertJsonToJavaObjectTree(data);
+			JsonValue val=data.get("val");
+			if(val==null)
+				return new Object[]{fullValue,fullValue};
+			return new Object[]{convertVal(val),fullValue};
+		}
+		else if(typeHint==TYPE_ARRAY)
+		{
+			Object v=MQTTHandler.convertJsonToJavaObjectTree(Json.parse(s).asArray());
+			return new Object[]{v,v};
+		}
+		return new Object[]{convertStringToObject(s),null};
+	}
+
+	/*
+	 * The full value of a JSON object payload. It is only converted into a Map
+	 * once somebody actually accesses it
+	 */
+	static class LazyJsonObject extends AbstractMap<String,Object>
+	{
+		private final byte payload[];
+		private volatile Map<String,Object> map;
+
+		LazyJsonObject(byte payload[])
+		{
+			this.payload=payload;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<String,Object> map()
+		{
+			Map<String,Object> m=map;
+			if(m==null)
+			{
+				try
+				{
+					m=(Map<String,Object>)MQTTHandler.convertJsonToJavaObjectTree(Json.parse(new String(payload,StandardCharsets.UTF_8)));
+				}
+				catch(ParseException e)
+				{
+					L.log(Level.WARNING,"Unable to decode payload "+new String(payload,StandardCharsets.UTF_8),e);
+					m=Collections.emptyMap();
+				}
+				map=m;
+			}
+			return m;
+		}
+
+		@Override
+		public Set<Map.Entry<String,Object>> entrySet()
+		{
+			return map().entrySet();
+		}
+
+		@Override
+		public Object get(Object key)
+		{
+			return map().get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return map().containsKey(key);
+		}
+
+		@Override
+		public int size()
+		{
+			return map().size();
+		}
+	}
+
+	private static final Logger L=Logger.getLogger(PayloadDecoder.class.getName());
+
+	static Object convertVal(JsonValue val)
+	{
+		if(val.isNumber())
+			return Double.valueOf(val.asDouble());
+		else if(val.isString())
+			return val.asString();
+		else if(val.isBoolean())
+			return Integer.valueOf(val.asBoolean()?1:0);
+		else if(val.isNull())
+			return null;
+		else
+			return val.toString();
+	}
+
+	/*
+	 * An Integer if possible, otherwise a Double (with a decimal point, in scientific notation
+	 * or out of the Integer range), a Boolean for "true" and "false", or the String itself
+	 */
+	static Object convertStringToObject(String val)
+	{
+		Number n=NumberParser.parseNumber(val);
+		if(n!=null)
+			return n;
+		// TODO: do we really want to do that?
+		if("true".equalsIgnoreCase(val))
+			return Boolean.TRUE;
+		if("false".equalsIgnoreCase(val))
+			return Boolean.FALSE;
+		return val;
+	}
+
+	/*
+	 * The Number convertStringToObject() returns for the plain payload, or null if it
+	 * isn't one. ASCII payloads are not decoded into a String for this
+	 */
+	static Number convertPayloadToNumber(byte payload[])
+	{
+		if(NumberParser.AsciiChars.isAscii(payload))
+			return NumberParser.parseNumber(new NumberParser.AsciiChars(payload));
+		return NumberParser.parseNumber(new String(payload,StandardCharsets.UTF_8));
+	}
+}
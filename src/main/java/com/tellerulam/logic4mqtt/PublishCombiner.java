@@ -0,0 +1,170 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+
+/*
+ * Outbound stage in front of the actual MQTT publish.
+ *
+ * It keeps track of the last payload published per topic and
+ *   - suppresses a publish if the same payload was published to the topic within
+ *     the last "dedupWindow" milliseconds
+ *   - delays a publish if another publish to the topic happened within the last
+ *     "mergeWindow" milliseconds; further publishes during the delay replace the
+ *     delayed value, so only the last one is actually sent
+ *
+ * Both mechanisms are disabled with a window of 0. The state of a topic is dropped
+ * once both windows have passed without another publish.
+ */
+public class PublishCombiner
+{
+	interface Sender
+	{
+		void send(String topic,MqttMessage msg,String logValue);
+	}
+
+	private static class TopicState
+	{
+		byte lastPayload[];
+		boolean lastRetained;
+		long lastSent;
+		/* The delayed publish, if any */
+		MqttMessage pendingMsg;
+		String pendingLogValue;
+	}
+
+	/*
+	 * Runs delayed publishes and other tasks which publish. Not on Main.t, as a publish
+	 * blocked by the broker would also stall the cache sweep and checkpoints there
+	 */
+	static final Timer publishTimer=new Timer("Delayed publishes",true);
+
+	private final Sender sender;
+	private final long dedupWindow, mergeWindow;
+	private final Map<String,TopicState> states=new HashMap<>();
+	private long published, suppressed, merged;
+
+	PublishCombiner(Sender sender,long dedupWindow,long mergeWindow)
+	{
+		this.sender=sender;
+		this.dedupWindow=dedupWindow;
+		this.mergeWindow=mergeWindow;
+		long window=Math.max(dedupWindow,mergeWindow);
+		if(window>0)
+		{
+			long period=Math.max(window,1000);
+			publishTimer.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					expire(System.currentTimeMillis());
+				}
+			},period,period);
+		}
+	}
+
+	void publish(final String topic,MqttMessage msg,String logValue)
+	{
+		if(dedupWindow<=0 && mergeWindow<=0)
+		{
+			synchronized(this)
+			{
+				published++;
+			}
+			sender.send(topic,msg,logValue);
+			return;
+		}
+		long now=System.currentTimeMillis();
+		synchronized(this)
+		{
+			TopicState st=states.get(topic);
+			if(st==null)
+				states.put(topic,st=new TopicState());
+			if(st.pendingMsg!=null)
+			{
+				st.pendingMsg=msg;
+				st.pendingLogValue=logValue;
+				merged++;
+				return;
+			}
+			if(isDuplicate(st,msg,now))
+			{
+				suppressed++;
+				return;
+			}
+			if(mergeWindow>0 && now-st.lastSent<mergeWindow)
+			{
+				st.pendingMsg=msg;
+				st.pendingLogValue=logValue;
+				publishTimer.schedule(new TimerTask(){
+					@Override
+					public void run()
+					{
+						flush(topic);
+					}
+				},st.lastSent+mergeWindow-now);
+				return;
+			}
+			markSent(st,msg,now);
+		}
+		sender.send(topic,msg,logValue);
+	}
+
+	private void flush(String topic)
+	{
+		MqttMessage msg;
+		String logValue;
+		synchronized(this)
+		{
+			TopicState st=states.get(topic);
+			msg=st.pendingMsg;
+			logValue=st.pendingLogValue;
+			st.pendingMsg=null;
+			st.pendingLogValue=null;
+			long now=System.currentTimeMillis();
+			if(isDuplicate(st,msg,now))
+			{
+				suppressed++;
+				return;
+			}
+			markSent(st,msg,now);
+		}
+		sender.send(topic,msg,logValue);
+	}
+
+	/*
+	 * Removes the state of topics whose windows have passed and which have no delayed
+	 * publish, returns the number of remaining topics
+	 */
+	synchronized int expire(long now)
+	{
+		long window=Math.max(dedupWindow,mergeWindow);
+		for(Iterator<TopicState> it=states.values().iterator();it.hasNext();)
+		{
+			TopicState st=it.next();
+			if(st.pendingMsg==null && now-st.lastSent>=window)
+				it.remove();
+		}
+		return states.size();
+	}
+
+	private boolean isDuplicate(TopicState st,MqttMessage msg,long now)
+	{
+		return dedupWindow>0 && st.lastPayload!=null && now-st.lastSent<dedupWindow
+			&& st.lastRetained==msg.isRetained() && Arrays.equals(st.lastPayload,msg.getPayload());
+	}
+
+	private void markSent(TopicState st,MqttMessage msg,long now)
+	{
+		st.lastPayload=msg.getPayload();
+		st.lastRetained=msg.isRetained();
+		st.lastSent=now;
+		published++;
+	}
+
+	public synchronized String getCmdlineSummary()
+	{
+		return "dedupwindow="+dedupWindow+"\tmergewindow="+mergeWindow+"\tpublished="+published+"\tsuppressed="+suppressed+"\tmerged="+merged;
+	}
+}
@@ -26,15 +26,7 @@ public class ScriptEngineTools
 	{
 		if(possibleNumber instanceof Number)
 			return (Number)possibleNumber;
-		try
-		{
-			return new Double(possibleNumber.toString());
-		}
-		catch(NumberFormatException e)
-		{
-			/* Not convertable */
-			return null;
-		}
+		return NumberParser.parseDouble(possibleNumber.toString());
 	}
 
 	/*
@@ -135,7 +135,15 @@ public class ScriptScanner
 			cx.setWriter(new LogWriter(Level.INFO,logPrefix));
 			cx.setErrorWriter(new LogWriter(Level.WARNING,logPrefix));
 			cx.setAttribute(ScriptEngine.FILENAME,"cmdline",ScriptContext.ENGINE_SCOPE);
-			engine.eval(code);
+			EventExecutor.Partition prev=EventExecutor.setCurrent(EventExecutor.forEngine(engine));
+			try
+			{
+				engine.eval(code);
+			}
+			finally
+			{
+				EventExecutor.setCurrent(prev);
+			}
 		}
 		catch(ScriptException e)
 		{
@@ -169,6 +177,8 @@ public class ScriptScanner
 				cx.setWriter(new LogWriter(Level.INFO,logPrefix));
 				cx.setErrorWriter(new LogWriter(Level.WARNING,logPrefix));
 				cx.setAttribute(ScriptEngine.FILENAME,ls.f.getName(),ScriptContext.ENGINE_SCOPE);
+				// Event handlers added by the script are run in the engine's partition
+				EventExecutor.setCurrent(EventExecutor.forEngine(ls.scriptEngine));
 				ls.scriptEngine.eval(new FileReader(ls.f));
 			}
 			catch(FileNotFoundException e)
@@ -181,6 +191,7 @@ public class ScriptScanner
 				System.exit(1);
 			}
 		}
+		EventExecutor.setCurrent(null);
 		/*
 		 * Since we no longer have individual contexts when callbacks are being used, we should reset this
 		 */
@@ -0,0 +1,277 @@
+package com.tellerulam.logic4mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/*
+ * Exports the current payload of every cached topic into a memory-mapped file, so other
+ * processes on the same host can read the state without their own MQTT subscription.
+ *
+ * Layout version 1, all numbers little endian:
+ *
+ * Header (64 bytes):
+ *   0  int    magic "L4MS" (0x534d344c)
+ *   4  int    layout version
+ *   8  int    number of slots
+ *   12 int    size of a slot in bytes
+ *   16 int    maximum topic length in bytes
+ *   20 int    maximum payload length in bytes
+ *   24 long   time the file was created, ms since the epoch
+ *   32 int    number of slots assigned so far; slots are assigned in ascending order
+ *             and readers only need to look at these
+ *   36        reserved
+ *
+ * Slot n starts at offset 64+n*slot size:
+ *   0  int    sequence number; odd while the slot is being written
+ *   4  short  length of the UTF-8 encoded topic; 0 if the slot is unused
+ *   6  byte   flags: bit 0 = payload was truncated
+ *   7  byte   reserved
+ *   8  int    length of the payload
+ *   12 int    reserved
+ *   16 long   time the payload was received, ms since the epoch
+ *   24 byte[] topic, padded to the maximum topic length
+ *      byte[] payload, padded to the maximum payload length
+ *
+ * A topic keeps its slot until it is removed from the cache. Readers must use the
+ * sequence number as a seqlock: read it, skip the slot if it is odd, copy the slot
+ * contents, then read the sequence number again and retry if it changed.
+ *
+ * Writers do not lock each other out globally. A writer claims a slot by making its
+ * sequence number odd with a compare-and-swap on a copy of the sequence numbers kept
+ * in an AtomicIntegerArray, writes the odd number into the file, then the contents,
+ * then the next even number. Atomic operations on the array order these stores, so
+ * a reader which sees an unchanged even sequence number also sees the complete contents.
+ *
+ * Topics longer than the maximum topic length, and topics arriving when all slots are
+ * in use, are not exported.
+ */
+class SharedCacheFile
+{
+	static final int MAGIC=0x534d344c;
+	static final int VERSION=1;
+	static final int HEADER_SIZE=64;
+	static final int SLOT_HEADER_SIZE=24;
+	static final int OFFSET_USED_SLOTS=32;
+
+	private final MappedByteBuffer b;
+	private final int slotCount, slotSize, maxTopic, maxPayload;
+	/* The sequence numbers of the slots, as in the file */
+	private final AtomicIntegerArray seqs;
+	private final ConcurrentMap<TopicHandle,Integer> slots=new ConcurrentHashMap<>();
+	/* The topic each slot is assigned to, checked after claiming a slot */
+	private final AtomicReferenceArray<TopicHandle> owners;
+	private final Queue<Integer> freeSlots=new ConcurrentLinkedQueue<>();
+	private final AtomicInteger usedSlots=new AtomicInteger();
+	private final LongAdder dropped=new LongAdder();
+
+	SharedCacheFile(File f,int slotCount,int maxTopic,int maxPayload) throws IOException
+	{
+		this.slotCount=slotCount;
+		this.maxTopic=maxTopic;
+		this.maxPayload=maxPayload;
+		// Keep slots 8 byte aligned
+		slotSize=(SLOT_HEADER_SIZE+maxTopic+maxPayload+7)&~7;
+		owners=new AtomicReferenceArray<>(slotCount);
+		seqs=new AtomicIntegerArray(Math.max(slotCount,1));
+		// Always start with a fresh file, so readers never see a stale layout
+		Files.deleteIfExists(f.toPath());
+		try(FileChannel fc=FileChannel.open(f.toPath(),StandardOpenOption.CREATE_NEW,StandardOpenOption.READ,StandardOpenOption.WRITE))
+		{
+			b=fc.map(FileChannel.MapMode.READ_WRITE,0,HEADER_SIZE+(long)slotCount*slotSize);
+		}
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(4,VERSION);
+		b.putInt(8,slotCount);
+		b.putInt(12,slotSize);
+		b.putInt(16,maxTopic);
+		b.putInt(20,maxPayload);
+		b.putLong(24,System.currentTimeMillis());
+		b.putInt(OFFSET_USED_SLOTS,0);
+		// The magic goes last, so a reader never sees a partially initialized header
+		fence(0);
+		b.putInt(0,MAGIC);
+	}
+
+	static void init()
+	{
+		String fn=System.getProperty("logic4mqtt.cache.sharedfile");
+		if(fn==null)
+			return;
+		try
+		{
+			SharedCacheFile sf=new SharedCacheFile(new File(fn),
+				Integer.getInteger("logic4mqtt.cache.sharedslots",16384).intValue(),
+				Integer.getInteger("logic4mqtt.cache.sharedtopicsize",192).intValue(),
+				Integer.getInteger("logic4mqtt.cache.sharedpayloadsize",512).intValue());
+			TopicCache.setSharedFile(sf);
+			L.info("Exporting topic cache to "+fn);
+		}
+		catch(IOException e)
+		{
+			L.log(Level.WARNING,"Unable to create shared cache file "+fn,e);
+		}
+	}
+
+	/*
+	 * An atomic read-modify-write, which is not reordered with the stores to the buffer
+	 * before and after it
+	 */
+	private void fence(int slot)
+	{
+		seqs.getAndAdd(slot,0);
+	}
+
+	/*
+	 * Claims a slot for writing by making its sequence number odd. Returns the previous,
+	 * even sequence number, to be passed to releaseSlot()
+	 */
+	private int claimSlot(int slot,int base)
+	{
+		for(;;)
+		{
+			int seq=seqs.get(slot);
+			if((seq&1)==0 && seqs.compareAndSet(slot,seq,seq+1))
+			{
+				b.putInt(base,seq+1);
+				// Readers must see the odd number before any of the contents change
+				fence(slot);
+				return seq;
+			}
+			Thread.yield();
+		}
+	}
+
+	private void releaseSlot(int slot,int base,int seq)
+	{
+		// Readers must see all of the contents before the even number
+		fence(slot);
+		b.putInt(base,seq+2);
+		seqs.set(slot,seq+2);
+	}
+
+	/*
+	 * Absolute bulk puts only exist from Java 16 on
+	 */
+	private void putBytes(int offset,byte src[],int len)
+	{
+		ByteBuffer d=b.duplicate();
+		d.position(offset);
+		d.put(src,0,len);
+	}
+
+	/*
+	 * Assigns a free slot to a topic, or returns null if there is none or the topic is too long
+	 */
+	private Integer assignSlot(TopicHandle topic,int topicLength)
+	{
+		if(topicLength>maxTopic || topicLength==0)
+		{
+			dropped.increment();
+			return null;
+		}
+		Integer slot=freeSlots.poll();
+		if(slot==null)
+		{
+			int n;
+			do
+			{
+				n=usedSlots.get();
+				if(n>=slotCount)
+				{
+					dropped.increment();
+					return null;
+				}
+			}
+			while(!usedSlots.compareAndSet(n,n+1));
+			slot=Integer.valueOf(n);
+			// Readers only look at slots below the count, which only ever grows
+			synchronized(usedSlots)
+			{
+				if(b.getInt(OFFSET_USED_SLOTS)<=n)
+					b.putInt(OFFSET_USED_SLOTS,n+1);
+			}
+		}
+		owners.set(slot.intValue(),topic);
+		Integer prev=slots.putIfAbsent(topic,slot);
+		if(prev!=null)
+		{
+			// Another thread was faster
+			owners.set(slot.intValue(),null);
+			freeSlots.add(slot);
+			return prev;
+		}
+		return slot;
+	}
+
+	void update(TopicHandle topic,byte payload[],long ts)
+	{
+		byte topicBytes[]=null;
+		for(;;)
+		{
+			Integer slot=slots.get(topic);
+			if(slot==null)
+			{
+				if(topicBytes==null)
+					topicBytes=topic.toString().getBytes(StandardCharsets.UTF_8);
+				slot=assignSlot(topic,topicBytes.length);
+				if(slot==null)
+					return;
+			}
+			int ix=slot.intValue();
+			int base=HEADER_SIZE+ix*slotSize;
+			int seq=claimSlot(ix,base);
+			// The slot may have been removed and reassigned since we looked it up
+			if(!topic.equals(owners.get(ix)))
+			{
+				releaseSlot(ix,base,seq);
+				continue;
+			}
+			if(b.getShort(base+4)==0)
+			{
+				if(topicBytes==null)
+					topicBytes=topic.toString().getBytes(StandardCharsets.UTF_8);
+				putBytes(base+SLOT_HEADER_SIZE,topicBytes,topicBytes.length);
+				b.putShort(base+4,(short)topicBytes.length);
+			}
+			int len=Math.min(payload.length,maxPayload);
+			b.put(base+6,(byte)(len<payload.length?1:0));
+			b.putInt(base+8,len);
+			b.putLong(base+16,ts);
+			putBytes(base+SLOT_HEADER_SIZE+maxTopic,payload,len);
+			releaseSlot(ix,base,seq);
+			return;
+		}
+	}
+
+	/*
+	 * The topic was removed from the cache; its slot is cleared and reused
+	 */
+	void remove(TopicHandle topic)
+	{
+		Integer slot=slots.remove(topic);
+		if(slot==null)
+			return;
+		int ix=slot.intValue();
+		int base=HEADER_SIZE+ix*slotSize;
+		int seq=claimSlot(ix,base);
+		owners.set(ix,null);
+		b.putShort(base+4,(short)0);
+		b.putInt(base+8,0);
+		releaseSlot(ix,base,seq);
+		freeSlots.add(slot);
+	}
+
+	public String getCmdlineSummary()
+	{
+		return "slots="+slotCount+"\tused="+slots.size()+"\tdropped="+dropped.sum();
+	}
+
+	private static final Logger L=Logger.getLogger(SharedCacheFile.class.getName());
+}
@@ -0,0 +1,464 @@
+package com.tellerulam.logic4mqtt;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/*
+ * Long-range history of the numeric values of a topic, in three tiers:
+ *   - raw samples, compressed in blocks: timestamps as delta-of-delta, values XORed with their
+ *     predecessor with leading and trailing zero bits left out (as in Facebook's "Gorilla")
+ *   - per minute min/max/sum/count
+ *   - per hour min/max/sum/count
+ * Each tier has its own retention time; old raw blocks and buckets are dropped.
+ */
+public class TimeSeries
+{
+	/*
+	 * A raw sample (with min=max=avg and count 1) or an aggregated bucket
+	 */
+	public static class Point
+	{
+		public final long ts;
+		public final double min, max, avg;
+		public final int count;
+
+		Point(long ts,double min,double max,double avg,int count)
+		{
+			this.ts=ts;
+			this.min=min;
+			this.max=max;
+			this.avg=avg;
+			this.count=count;
+		}
+	}
+
+	public enum Resolution
+	{
+		RAW, MINUTE, HOUR
+	}
+
+	private static final int SAMPLES_PER_BLOCK=1024;
+	private static final long MINUTE=60*1000L;
+	private static final long HOUR=60*MINUTE;
+
+	private final long rawRetention;
+	private final List<Block> blocks=new ArrayList<>();
+	private final Tier minutes, hours;
+
+	TimeSeries(long rawRetention,long minuteRetention,long hourRetention)
+	{
+		this.rawRetention=rawRetention;
+		minutes=new Tier(MINUTE,minuteRetention);
+		hours=new Tier(HOUR,hourRetention);
+	}
+
+	synchronized void add(long ts,double v)
+	{
+		Block b=blocks.isEmpty()?null:blocks.get(blocks.size()-1);
+		// Samples must be in order; a clock going backwards starts a new block
+		if(b==null || b.count>=SAMPLES_PER_BLOCK || ts<b.lastTs)
+			blocks.add(new Block(ts,v));
+		else
+			b.add(ts,v);
+		minutes.add(ts,v);
+		hours.add(ts,v);
+		expire(ts);
+	}
+
+	private void expire(long now)
+	{
+		int drop=0;
+		while(drop<blocks.size()-1 && blocks.get(drop).lastTs<now-rawRetention)
+			drop++;
+		if(drop>0)
+			blocks.subList(0,drop).clear();
+		minutes.expire(now);
+		hours.expire(now);
+	}
+
+	/*
+	 * Returns the points between "from" and "to" (inclusive). With a null resolution,
+	 * the finest tier whose retention covers "from" is used
+	 */
+	synchronized List<Point> query(long from,long to,Resolution res)
+	{
+		if(res==null)
+		{
+			long now=System.currentTimeMillis();
+			if(from>=now-rawRetention)
+				res=Resolution.RAW;
+			else if(from>=now-minutes.retention)
+				res=Resolution.MINUTE;
+			else
+				res=Resolution.HOUR;
+		}
+		List<Point> points=new ArrayList<>();
+		switch(res)
+		{
+			case RAW:
+				for(Block b:blocks)
+				{
+					if(b.lastTs>=from && b.firstTs<=to)
+						b.decode(from,to,points);
+				}
+				break;
+			case MINUTE:
+				minutes.query(from,to,points);
+				break;
+			case HOUR:
+				hours.query(from,to,points);
+				break;
+		}
+		return points;
+	}
+
+	synchronized void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(blocks.size());
+		for(Block b:blocks)
+			b.writeTo(out);
+		minutes.writeTo(out);
+		hours.writeTo(out);
+	}
+
+	synchronized void readFrom(ByteBuffer in)
+	{
+		blocks.clear();
+		for(int n=in.getInt();n>0;n--)
+			blocks.add(new Block(in));
+		minutes.readFrom(in);
+		hours.readFrom(in);
+	}
+
+	/*
+	 * A block of compressed raw samples. The first sample is stored uncompressed
+	 */
+	private static class Block
+	{
+		final long firstTs;
+		final double firstValue;
+		long lastTs, lastDelta;
+		long lastBits;
+		int lastLeading=-1, lastTrailing;
+		int count;
+		long words[]=new long[16];
+		int bitPos;
+
+		Block(long ts,double v)
+		{
+			firstTs=lastTs=ts;
+			firstValue=v;
+			lastBits=Double.doubleToRawLongBits(v);
+			count=1;
+		}
+
+		void add(long ts,double v)
+		{
+			long delta=ts-lastTs;
+			long dod=delta-lastDelta;
+			if(dod==0)
+				write(0,1);
+			else if(dod>=-64 && dod<=63)
+			{
+				write(0b10,2);
+				write(dod,7);
+			}
+			else if(dod>=-2048 && dod<=2047)
+			{
+				write(0b110,3);
+				write(dod,12);
+			}
+			else if(dod>=-524288 && dod<=524287)
+			{
+				write(0b1110,4);
+				write(dod,20);
+			}
+			else
+			{
+				write(0b1111,4);
+				write(dod,64);
+			}
+			lastDelta=delta;
+			lastTs=ts;
+
+			long bits=Double.doubleToRawLongBits(v);
+			long xor=bits^lastBits;
+			lastBits=bits;
+			if(xor==0)
+				write(0,1);
+			else
+			{
+				int leading=Math.min(31,Long.numberOfLeadingZeros(xor));
+				int trailing=Long.numberOfTrailingZeros(xor);
+				if(lastLeading>=0 && leading>=lastLeading && trailing>=lastTrailing)
+				{
+					// Fits into the window of the previous value
+					write(0b10,2);
+					write(xor>>>lastTrailing,64-lastLeading-lastTrailing);
+				}
+				else
+				{
+					int len=64-leading-trailing;
+					write(0b11,2);
+					write(leading,5);
+					// A length of 64 is stored as 0
+					write(len&63,6);
+					write(xor>>>trailing,len);
+					lastLeading=leading;
+					lastTrailing=trailing;
+				}
+			}
+			count++;
+		}
+
+		private void write(long value,int bits)
+		{
+			while(bits>0)
+			{
+				int wordIx=bitPos>>>6;
+				if(wordIx>=words.length)
+					words=Arrays.copyOf(words,words.length*2);
+				int free=64-(bitPos&63);
+				int n=Math.min(free,bits);
+				long chunk=(value>>>(bits-n))&(n==64?-1L:(1L<<n)-1);
+				words[wordIx]|=chunk<<(free-n);
+				bitPos+=n;
+				bits-=n;
+			}
+		}
+
+		void decode(long from,long to,List<Point> points)
+		{
+			Reader r=new Reader(words);
+			long ts=firstTs, delta=0;
+			long bits=Double.doubleToRawLongBits(firstValue);
+			int leading=0, trailing=0;
+			for(int ix=0;ix<count;ix++)
+			{
+				if(ix>0)
+				{
+					long dod;
+					if(r.read(1)==0)
+						dod=0;
+					else if(r.read(1)==0)
+						dod=r.readSigned(7);
+					else if(r.read(1)==0)
+						dod=r.readSigned(12);
+					else if(r.read(1)==0)
+						dod=r.readSigned(20);
+					else
+						dod=r.read(64);
+					delta+=dod;
+					ts+=delta;
+					if(r.read(1)==1)
+					{
+						if(r.read(1)==1)
+						{
+							leading=(int)r.read(5);
+							int len=(int)r.read(6);
+							if(len==0)
+								len=64;
+							trailing=64-leading-len;
+						}
+						bits^=r.read(64-leading-trailing)<<trailing;
+					}
+				}
+				if(ts>to)
+					break;
+				if(ts>=from)
+				{
+					double v=Double.longBitsToDouble(bits);
+					points.add(new Point(ts,v,v,v,1));
+				}
+			}
+		}
+
+		void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeLong(firstTs);
+			out.writeDouble(firstValue);
+			out.writeLong(lastTs);
+			out.writeLong(lastDelta);
+			out.writeLong(lastBits);
+			out.writeInt(lastLeading);
+			out.writeInt(lastTrailing);
+			out.writeInt(count);
+			out.writeInt(bitPos);
+			int usedWords=(bitPos+63)>>>6;
+			for(int ix=0;ix<usedWords;ix++)
+				out.writeLong(words[ix]);
+		}
+
+		Block(ByteBuffer in)
+		{
+			firstTs=in.getLong();
+			firstValue=in.getDouble();
+			lastTs=in.getLong();
+			lastDelta=in.getLong();
+			lastBits=in.getLong();
+			lastLeading=in.getInt();
+			lastTrailing=in.getInt();
+			count=in.getInt();
+			bitPos=in.getInt();
+			int usedWords=(bitPos+63)>>>6;
+			if(bitPos<0 || usedWords*8L>in.remaining())
+				throw new BufferUnderflowException();
+			words=new long[Math.max(16,usedWords)];
+			for(int ix=0;ix<usedWords;ix++)
+				words[ix]=in.getLong();
+		}
+	}
+
+	private static class Reader
+	{
+		final long words[];
+		int bitPos;
+
+		Reader(long words[])
+		{
+			this.words=words;
+		}
+
+		long read(int bits)
+		{
+			long res=0;
+			while(bits>0)
+			{
+				int avail=64-(bitPos&63);
+				int n=Math.min(avail,bits);
+				long chunk=(words[bitPos>>>6]>>>(avail-n))&(n==64?-1L:(1L<<n)-1);
+				res=(n==64)?chunk:(res<<n)|chunk;
+				bitPos+=n;
+				bits-=n;
+			}
+			return res;
+		}
+
+		long readSigned(int bits)
+		{
+			long v=read(bits);
+			// Sign extend
+			return (v<<(64-bits))>>(64-bits);
+		}
+	}
+
+	/*
+	 * Aggregated buckets of a fixed duration, oldest first, in primitive arrays
+	 */
+	private static class Tier
+	{
+		final long bucketSize, retention;
+		long starts[]=new long[16];
+		double mins[]=new double[16], maxs[]=new double[16], sums[]=new double[16];
+		int counts[]=new int[16];
+		int first, size;
+
+		Tier(long bucketSize,long retention)
+		{
+			this.bucketSize=bucketSize;
+			this.retention=retention;
+		}
+
+		void add(long ts,double v)
+		{
+			long start=ts-Math.floorMod(ts,bucketSize);
+			int last=first+size-1;
+			// Late samples are folded into the newest bucket
+			if(size>0 && start<=starts[last])
+			{
+				mins[last]=Math.min(mins[last],v);
+				maxs[last]=Math.max(maxs[last],v);
+				sums[last]+=v;
+				counts[last]++;
+				return;
+			}
+			if(first+size==starts.length)
+				compact();
+			int ix=first+size++;
+			starts[ix]=start;
+			mins[ix]=maxs[ix]=sums[ix]=v;
+			counts[ix]=1;
+		}
+
+		/* Make room at the end, either by moving the buckets to the front, or by growing */
+		private void compact()
+		{
+			int cap=(size*2>starts.length)?starts.length*2:starts.length;
+			starts=move(starts,cap);
+			mins=move(mins,cap);
+			maxs=move(maxs,cap);
+			sums=move(sums,cap);
+			counts=move(counts,cap);
+			first=0;
+		}
+
+		private long[] move(long a[],int cap)
+		{
+			long res[]=new long[cap];
+			System.arraycopy(a,first,res,0,size);
+			return res;
+		}
+
+		private double[] move(double a[],int cap)
+		{
+			double res[]=new double[cap];
+			System.arraycopy(a,first,res,0,size);
+			return res;
+		}
+
+		private int[] move(int a[],int cap)
+		{
+			int res[]=new int[cap];
+			System.arraycopy(a,first,res,0,size);
+			return res;
+		}
+
+		void expire(long now)
+		{
+			while(size>0 && starts[first]+bucketSize<now-retention)
+			{
+				first++;
+				size--;
+			}
+		}
+
+		void query(long from,long to,List<Point> points)
+		{
+			for(int ix=first;ix<first+size;ix++)
+			{
+				if(starts[ix]+bucketSize>from && starts[ix]<=to)
+					points.add(new Point(starts[ix],mins[ix],maxs[ix],sums[ix]/counts[ix],counts[ix]));
+			}
+		}
+
+		void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeInt(size);
+			for(int ix=first;ix<first+size;ix++)
+			{
+				out.writeLong(starts[ix]);
+				out.writeDouble(mins[ix]);
+				out.writeDouble(maxs[ix]);
+				out.writeDouble(sums[ix]);
+				out.writeInt(counts[ix]);
+			}
+		}
+
+		void readFrom(ByteBuffer in)
+		{
+			first=size=0;
+			for(int n=in.getInt();n>0;n--)
+			{
+				if(size==starts.length)
+					compact();
+				starts[size]=in.getLong();
+				mins[size]=in.getDouble();
+				maxs[size]=in.getDouble();
+				sums[size]=in.getDouble();
+				counts[size]=in.getInt();
+				size++;
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+
+/*
+ * An aggregate over the numeric values of all topics matching a pattern, which is
+ * updated incrementally whenever one of the topics is stored. Boolean values count
+ * as 1 and 0; topics whose value is not numeric do not contribute.
+ *
+ * SUM, AVG, COUNT and ANY are updated in constant time, MIN and MAX in logarithmic time.
+ *
+ * Changed results are published from the "java" event executor partition, not from
+ * within the store which changed them. The topic published to never contributes.
+ */
+public class TopicAggregate
+{
+	enum Function
+	{
+		SUM, AVG, MIN, MAX, COUNT, ANY
+	}
+
+	/* Recompute the sum from scratch after this many updates, to avoid accumulating rounding errors */
+	private static final int RESUM_INTERVAL=10000;
+
+	final TopicPattern pattern;
+	final Function function;
+	/* Topic to publish changed results to, or null */
+	private final String publishTopic;
+
+	private final Map<TopicCache,Double> contributions=new HashMap<>();
+	/* Value -> number of topics with that value; only maintained for MIN and MAX */
+	private final TreeMap<Double,Integer> sorted;
+	private double sum;
+	private int nonZero;
+	private int updates;
+	private Object lastPublished;
+
+	TopicAggregate(TopicPattern pattern,Function function,String publishTopic)
+	{
+		this.pattern=pattern;
+		this.function=function;
+		this.publishTopic=publishTopic;
+		sorted=(function==Function.MIN || function==Function.MAX)?new TreeMap<Double,Integer>():null;
+	}
+
+	/*
+	 * Whether "topic" is the one the result is published to
+	 */
+	boolean publishesTo(String topic)
+	{
+		return topic.equals(publishTopic);
+	}
+
+	/*
+	 * The new value of a topic, or null if it has no numeric value
+	 */
+	void update(TopicCache t,Double v)
+	{
+		final Object res;
+		synchronized(this)
+		{
+			Double old=(v!=null)?contributions.put(t,v):contributions.remove(t);
+			if(Objects.equals(old,v))
+				return;
+			if(old!=null)
+				remove(old.doubleValue());
+			if(v!=null)
+				add(v.doubleValue());
+			if(++updates%RESUM_INTERVAL==0)
+			{
+				sum=0;
+				for(Double d:contributions.values())
+					sum+=d.doubleValue();
+			}
+			if(publishTopic==null)
+				return;
+			res=getValue();
+			if(Objects.equals(res,lastPublished))
+				return;
+			lastPublished=res;
+		}
+		// Publishes of the same aggregate run in one lane, so the last result is published last
+		EventExecutor.forJava().execute(publishTopic,new Runnable(){
+			@Override
+			public void run()
+			{
+				MQTTHandler.doPublish(publishTopic,res,true);
+			}
+		});
+	}
+
+	private void add(double v)
+	{
+		sum+=v;
+		if(v!=0)
+			nonZero++;
+		if(sorted!=null)
+		{
+			Integer cnt=sorted.get(v);
+			sorted.put(v,Integer.valueOf(cnt==null?1:cnt.intValue()+1));
+		}
+	}
+
+	private void remove(double v)
+	{
+		sum-=v;
+		if(v!=0)
+			nonZero--;
+		if(sorted!=null)
+		{
+			Integer cnt=sorted.get(v);
+			if(cnt.intValue()==1)
+				sorted.remove(v);
+			else
+				sorted.put(v,Integer.valueOf(cnt.intValue()-1));
+		}
+	}
+
+	/*
+	 * The current result: a Double for SUM, AVG, MIN and MAX (null for AVG, MIN and MAX
+	 * if no topic has a numeric value), an Integer for COUNT and a Boolean for ANY
+	 */
+	public synchronized Object getValue()
+	{
+		switch(function)
+		{
+			case SUM:
+				return Double.valueOf(sum);
+			case AVG:
+				return contributions.isEmpty()?null:Double.valueOf(sum/contributions.size());
+			case MIN:
+				return sorted.isEmpty()?null:sorted.firstKey();
+			case MAX:
+				return sorted.isEmpty()?null:sorted.lastKey();
+			case COUNT:
+				return Integer.valueOf(contributions.size());
+			default:
+				return Boolean.valueOf(nonZero>0);
+		}
+	}
+
+	/*
+	 * The number of topics with a numeric value
+	 */
+	public synchronized int getCount()
+	{
+		return contributions.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return function+"("+pattern+")="+getValue();
+	}
+}
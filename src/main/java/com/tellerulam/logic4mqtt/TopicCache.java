@@ -4,13 +4,19 @@
 
 package com.tellerulam.logic4mqtt;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.logging.*;
 import java.util.regex.*;
 
 public class TopicCache
 {
-	static final Map<String,TopicCache> topics=new HashMap<>();
+	static final ConcurrentHashMap<TopicHandle,TopicCache> topics=new ConcurrentHashMap<>();
 
 	/**
 	 * Replaces the // notation into /status/ and /set/ respectivly
@@ -70,123 +76,1311 @@ public class TopicCache
 		return topic;
 	}
 
-	static TopicCache storeTopic(String topic,Object newValue,Object fullValue)
+	private static TopicCache get(String topic)
 	{
-		synchronized(topics)
+		TopicHandle h=TopicHandle.lookup(topic);
+		TopicCache t=h!=null?topics.get(h):null;
+		if(t==null)
+			misses.increment();
+		else
 		{
-			TopicCache t=topics.get(topic);
+			hits.increment();
+			t.touch(System.currentTimeMillis());
+		}
+		return t;
+	}
+
+
+	/* Export of the current values for other processes, or null */
+	private static volatile SharedCacheFile sharedFile;
+
+	static void setSharedFile(SharedCacheFile sf)
+	{
+		sharedFile=sf;
+		// Export what we already know, e.g. from a restored snapshot, with the payloads as received
+		for(TopicCache t:topics.values())
+		{
+			TopicValue tv=t.read(t.values,0,Long.MAX_VALUE);
+			byte p[]=t.lastPayload;
+			if(tv!=null && p!=null)
+				sf.update(t.handle,p,tv.ts.getTime());
+		}
+	}
+
+	static Snapshot storeTopic(String topic,byte payload[])
+	{
+		Incoming in=new Incoming(payload);
+		TopicCache t;
+		Snapshot snapshot;
+		do
+		{
+			// Segments are only interned for topics which are new to the cache
+			TopicHandle h=TopicHandle.lookup(topic);
+			t=h!=null?topics.get(h):null;
 			if(t==null)
 			{
-				t=new TopicCache(topic);
-				topics.put(t.topic,t);
+				h=TopicHandle.of(topic);
+				TopicCache nt=new TopicCache(h,topic);
+				t=topics.putIfAbsent(h,nt);
+				if(t==null)
+				{
+					t=nt;
+					addToViews(t);
+					addToAggregates(t);
+					if(MAX_ENTRIES>0 && topics.size()>MAX_ENTRIES)
+						requestEvict();
+				}
+				else
+					h.release();
 			}
-			t.storeValue(newValue,fullValue);
-			return t;
+			snapshot=t.storeValue(in);
+			// Removed by a concurrent sweep, which may not have unmapped it yet
+			if(snapshot==null)
+				topics.remove(t.handle,t);
 		}
+		while(snapshot==null);
+		SharedCacheFile sf=sharedFile;
+		if(sf!=null)
+			sf.update(t.handle,payload,System.currentTimeMillis());
+		return snapshot;
+	}
+
+	/*
+	 * Whether "payload" is the same as the last payload received for the topic since startup.
+	 * Values restored from the snapshot file don't count, they still need to be confirmed
+	 * by storing them. This neither interns the topic nor classifies the payload
+	 */
+	static boolean hasCurrentPayload(String topic,byte payload[])
+	{
+		TopicHandle h=TopicHandle.lookup(topic);
+		TopicCache t=h!=null?topics.get(h):null;
+		return t!=null && Arrays.equals(t.getLivePayload(),payload);
 	}
 
 	public static TopicValue getTopicValue(String topic,int which)
 	{
-		synchronized(topics)
-		{
-			TopicCache t=topics.get(topic);
-			if(t!=null && which<t.values.length)
-				return t.values[which];
-		}
+		TopicCache t=get(topic);
+		if(t!=null)
+			return t.read(t.values,which,Long.MAX_VALUE);
 		return null;
 	}
 
 	public static TopicValue getChangedTopicValue(String topic,int which)
 	{
-		synchronized(topics)
-		{
-			TopicCache t=topics.get(topic);
-			if(t!=null && which<t.changedValues.length)
-				return t.changedValues[which];
-		}
+		TopicCache t=get(topic);
+		if(t!=null)
+			return t.read(t.changedValues,which,Long.MAX_VALUE);
 		return null;
 	}
 
 	public static Map<String, Object> getTopicValues(String topicPattern)
 	{
 		Map<String,Object> values=new HashMap<>();
-		Pattern p=Pattern.compile(convertStatusTopic(topicPattern));
-		synchronized(topics)
+		long now=System.currentTimeMillis();
+		for(TopicCache t:getView(topicPattern).topics)
 		{
-			for(TopicCache t:topics.values())
-				if(p.matcher(t.topic).matches())
-					values.put(t.topic,t.values[0].value);
+			t.touch(now);
+			TopicValue tv=t.read(t.values,0,Long.MAX_VALUE);
+			if(tv!=null)
+				values.put(t.handle.toString(),tv.getValue());
 		}
 		return values;
 	}
 
-	public Object getValue()
+	/*
+	 * The set of topics matching a pattern. Once created, a view is kept up to date
+	 * as new topics appear, so querying it does not require a scan of the whole cache
+	 */
+	private static class View
 	{
-		return changedValues[0].value;
+		final TopicPattern pattern;
+		final Set<TopicCache> topics=Collections.newSetFromMap(new ConcurrentHashMap<TopicCache,Boolean>());
+		/* Released once the initial scan is complete */
+		final CountDownLatch built=new CountDownLatch(1);
+
+		View(TopicPattern pattern)
+		{
+			this.pattern=pattern;
+		}
+
+		void awaitBuilt()
+		{
+			boolean interrupted=false;
+			for(;;)
+			{
+				try
+				{
+					built.await();
+					break;
+				}
+				catch(InterruptedException e)
+				{
+					interrupted=true;
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
 	}
-	public Object getFullValue()
+
+	/*
+	 * Views in LRU order. Views dropped beyond logic4mqtt.cache.views are also removed from the index
+	 */
+	private static final class ViewLRU extends LinkedHashMap<String,View>
 	{
-		return changedValues[0].fullValue;
+		private static final long serialVersionUID=1L;
+
+		ViewLRU()
+		{
+			super(16,0.75f,true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,View> eldest)
+		{
+			if(size()<=MAX_VIEWS)
+				return false;
+			viewIndex.remove(eldest.getValue().pattern,eldest.getValue());
+			return true;
+		}
 	}
-	public Object getPreviousValue()
+
+	/* Views for the most recently queried patterns; both guarded by "views" */
+	private static final int MAX_VIEWS=Integer.getInteger("logic4mqtt.cache.views",100).intValue();
+	private static final TopicIndex<View> viewIndex=new TopicIndex<>();
+	private static final Map<String,View> views=new ViewLRU();
+
+	private static View getView(String topicPattern)
 	{
-		if(changedValues[1]!=null)
-			return changedValues[1].value;
-		return null;
+		View v;
+		boolean created=false;
+		synchronized(views)
+		{
+			v=views.get(topicPattern);
+			if(v==null)
+			{
+				v=new View(TopicPattern.compile(convertStatusTopic(topicPattern)));
+				// Register first, so topics created during the scan are not missed
+				viewIndex.add(v.pattern,v);
+				views.put(topicPattern,v);
+				created=true;
+			}
+		}
+		if(!created)
+		{
+			v.awaitBuilt();
+			return v;
+		}
+		// Scan without holding the lock; concurrent queries of the pattern wait until we're done
+		try
+		{
+			for(Iterator<TopicCache> it=scan(v.pattern);it.hasNext();)
+			{
+				TopicCache t=it.next();
+				v.topics.add(t);
+				// It may have been removed from the views just before we added it
+				if(topics.get(t.handle)!=t)
+					v.topics.remove(t);
+			}
+		}
+		finally
+		{
+			v.built.countDown();
+		}
+		return v;
+	}
+
+	/*
+	 * Ad-hoc query of the current values of all topics matching "topicPattern", without
+	 * registering a view. The values are returned as they are found
+	 */
+	public static Iterator<Map.Entry<String,Object>> scanTopicValues(String topicPattern)
+	{
+		return scanTopicValues(TopicPattern.compile(convertStatusTopic(topicPattern)));
+	}
+
+	static Iterator<Map.Entry<String,Object>> scanTopicValues(TopicPattern p)
+	{
+		final Iterator<TopicCache> it=scan(p);
+		return new Iterator<Map.Entry<String,Object>>(){
+			private Map.Entry<String,Object> next;
+			@Override
+			public boolean hasNext()
+			{
+				while(next==null && it.hasNext())
+				{
+					TopicCache t=it.next();
+					TopicValue tv=t.read(t.values,0,Long.MAX_VALUE);
+					if(tv!=null)
+						next=new AbstractMap.SimpleImmutableEntry<>(t.handle.toString(),tv.getValue());
+				}
+				return next!=null;
+			}
+			@Override
+			public Map.Entry<String,Object> next()
+			{
+				if(!hasNext())
+					throw new NoSuchElementException();
+				Map.Entry<String,Object> res=next;
+				next=null;
+				return res;
+			}
+		};
+	}
+
+	/*
+	 * Scanning all entries for pattern matches. Entries are first filtered by the literal
+	 * leading segments of the pattern, comparing segment ids only; only the remaining ones
+	 * are matched against the pattern. Above logic4mqtt.cache.parallelthreshold entries,
+	 * the scan is split across the common ForkJoinPool
+	 */
+	private static final long PARALLEL_THRESHOLD=Long.getLong("logic4mqtt.cache.parallelthreshold",100000).longValue();
+	/* Number of entries per fork/join subtask */
+	private static final long PARALLEL_BATCH=10000;
+
+	static Iterator<TopicCache> scan(TopicPattern p)
+	{
+		return scan(p,topics.size()>=PARALLEL_THRESHOLD);
 	}
-	public Date getPreviousTimestamp()
+
+	static Iterator<TopicCache> scan(final TopicPattern p,boolean parallel)
+	{
+		final int prefix[]=TopicHandle.lookupSegments(p.getLiteralPrefix());
+		if(prefix==null)
+		{
+			// A prefix segment which was never seen, so nothing can match
+			return Collections.emptyIterator();
+		}
+		if(!parallel)
+		{
+			final Iterator<TopicCache> it=topics.values().iterator();
+			return new Iterator<TopicCache>(){
+				private TopicCache next;
+				@Override
+				public boolean hasNext()
+				{
+					while(next==null && it.hasNext())
+					{
+						TopicCache t=it.next();
+						if(t.handle.startsWith(prefix) && p.matches(t.handle.toString()))
+							next=t;
+					}
+					return next!=null;
+				}
+				@Override
+				public TopicCache next()
+				{
+					if(!hasNext())
+						throw new NoSuchElementException();
+					TopicCache res=next;
+					next=null;
+					return res;
+				}
+			};
+		}
+		return new ParallelScan(p,prefix);
+	}
+
+	/*
+	 * Iterates over the results of a scan on the ForkJoinPool. The keyspace is split into parts
+	 * of about PARALLEL_BATCH entries up front; whenever the results run out, the next parts
+	 * are scanned in parallel. Nothing runs in the background, so a caller which stops early
+	 * leaves no work behind, and a failure of the scan is thrown by hasNext()
+	 */
+	private static class ParallelScan implements Iterator<TopicCache>
 	{
-		if(changedValues[1]!=null)
-			return changedValues[1].ts;
+		private final TopicPattern p;
+		private final int prefix[];
+		/* Parts of the keyspace which were not scanned yet */
+		private final Deque<Spliterator<TopicCache>> parts=new ArrayDeque<>();
+		private Iterator<TopicCache> batch=Collections.emptyIterator();
+
+		ParallelScan(TopicPattern p,int prefix[])
+		{
+			this.p=p;
+			this.prefix=prefix;
+			split(topics.values().spliterator());
+		}
+
+		private void split(Spliterator<TopicCache> s)
+		{
+			while(s.estimateSize()>PARALLEL_BATCH)
+			{
+				Spliterator<TopicCache> other=s.trySplit();
+				if(other==null)
+					break;
+				split(other);
+			}
+			parts.add(s);
+		}
+
+		private ForkJoinTask<List<TopicCache>> scanPart(final Spliterator<TopicCache> part)
+		{
+			return ForkJoinPool.commonPool().submit(new Callable<List<TopicCache>>(){
+				@Override
+				public List<TopicCache> call()
+				{
+					final List<TopicCache> res=new ArrayList<>();
+					part.forEachRemaining(new java.util.function.Consumer<TopicCache>(){
+						@Override
+						public void accept(TopicCache t)
+						{
+							if(t.handle.startsWith(prefix) && p.matches(t.handle.toString()))
+								res.add(t);
+						}
+					});
+					return res;
+				}
+			});
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while(!batch.hasNext())
+			{
+				if(parts.isEmpty())
+					return false;
+				// One part per thread of the pool
+				List<ForkJoinTask<List<TopicCache>>> tasks=new ArrayList<>();
+				for(int n=ForkJoinPool.getCommonPoolParallelism();n>0 && !parts.isEmpty();n--)
+					tasks.add(scanPart(parts.poll()));
+				List<TopicCache> res=new ArrayList<>();
+				for(ForkJoinTask<List<TopicCache>> task:tasks)
+					res.addAll(task.join());
+				batch=res.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public TopicCache next()
+		{
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return batch.next();
+		}
+	}
+
+	private static void addToViews(TopicCache t)
+	{
+		Set<View> matched=new HashSet<>();
+		synchronized(views)
+		{
+			viewIndex.collect(t.handle,matched);
+		}
+		for(View v:matched)
+			v.topics.add(t);
+	}
+
+	/* Registered aggregates by pattern, function and publish topic; both guarded by "aggregates" */
+	private static final Map<String,TopicAggregate> aggregates=new HashMap<>();
+	private static final TopicIndex<TopicAggregate> aggregateIndex=new TopicIndex<>();
+
+	/*
+	 * Returns the aggregate of "function" over the topics matching "topicPattern",
+	 * registering it if necessary
+	 */
+	public static TopicAggregate aggregate(String topicPattern,String function,String publishTopic)
+	{
+		TopicAggregate.Function f=TopicAggregate.Function.valueOf(function.toUpperCase());
+		String key=topicPattern+"\u0000"+f+"\u0000"+publishTopic;
+		TopicAggregate a;
+		synchronized(aggregates)
+		{
+			a=aggregates.get(key);
+			if(a!=null)
+				return a;
+			a=new TopicAggregate(TopicPattern.compile(convertStatusTopic(topicPattern)),f,publishTopic);
+			aggregates.put(key,a);
+			aggregateIndex.add(a.pattern,a);
+		}
+		// Topics created from here on are added by addToAggregates()
+		for(Iterator<TopicCache> it=scan(a.pattern);it.hasNext();)
+		{
+			TopicCache t=it.next();
+			if(!a.publishesTo(t.handle.toString()) && t.addAggregate(a))
+			{
+				TopicValue tv=t.read(t.values,0,Long.MAX_VALUE);
+				a.update(t,tv!=null?toNumber(tv.getValue()):null);
+			}
+		}
+		return a;
+	}
+
+	private static void addToAggregates(TopicCache t)
+	{
+		List<TopicAggregate> matched=new ArrayList<>();
+		synchronized(aggregates)
+		{
+			aggregateIndex.collect(t.handle,matched);
+		}
+		String topic=null;
+		for(TopicAggregate a:matched)
+		{
+			if(topic==null)
+				topic=t.handle.toString();
+			// Our own result would feed back into the aggregate
+			if(!a.publishesTo(topic))
+				t.addAggregate(a);
+		}
+	}
+
+	/* Aggregates this topic contributes to, or null; replaced as a whole */
+	private volatile TopicAggregate topicAggregates[];
+
+	private synchronized boolean addAggregate(TopicAggregate a)
+	{
+		TopicAggregate current[]=topicAggregates;
+		if(current==null)
+		{
+			topicAggregates=new TopicAggregate[]{ a };
+			return true;
+		}
+		for(TopicAggregate c:current)
+			if(c==a)
+				return false;
+		TopicAggregate n[]=Arrays.copyOf(current,current.length+1);
+		n[current.length]=a;
+		topicAggregates=n;
+		return true;
+	}
+
+	static Double toNumber(Object v)
+	{
+		if(v instanceof Number)
+			return Double.valueOf(((Number)v).doubleValue());
+		if(v instanceof Boolean)
+			return Double.valueOf(((Boolean)v).booleanValue()?1:0);
 		return null;
 	}
-	/* Whether the last store was a refresh of the previus value */
-	public boolean wasRefreshed()
+
+	/*
+	 * Parses a comma-separated list of pattern=value, as used for per-pattern settings.
+	 * Lookups use the first matching pattern
+	 */
+	static Map<TopicPattern,Long> parsePatternSettings(String spec,String what)
+	{
+		Map<TopicPattern,Long> settings=new LinkedHashMap<>();
+		if(spec==null)
+			return settings;
+		for(String e:spec.split(","))
+		{
+			e=e.trim();
+			int eqIx=e.lastIndexOf('=');
+			try
+			{
+				if(eqIx<=0)
+					throw new NumberFormatException("missing value");
+				Long v=Long.valueOf(e.substring(eqIx+1).trim());
+				settings.put(TopicPattern.compile(convertStatusTopic(e.substring(0,eqIx).trim())),v);
+			}
+			catch(NumberFormatException nfe)
+			{
+				Logger.getLogger(TopicCache.class.getName()).warning("Ignoring invalid "+what+" specification \""+e+"\": "+nfe.getMessage());
+			}
+		}
+		return settings;
+	}
+
+	static long getPatternSetting(Map<TopicPattern,Long> settings,String topic,long defaultValue)
+	{
+		for(Map.Entry<TopicPattern,Long> me:settings.entrySet())
+		{
+			if(me.getKey().matches(topic))
+				return me.getValue().longValue();
+		}
+		return defaultValue;
+	}
+
+	/*
+	 * History depth per topic pattern, from logic4mqtt.cache.history
+	 */
+	private static final int DEFAULT_HISTORY_DEPTH=10;
+	private static final Map<TopicPattern,Long> historyDepths=parsePatternSettings(System.getProperty("logic4mqtt.cache.history"),"history depth");
+
+	static int getHistoryDepth(String topic)
+	{
+		// We need at least the current and the previous value
+		return (int)Math.max(2,getPatternSetting(historyDepths,topic,DEFAULT_HISTORY_DEPTH));
+	}
+
+	/*
+	 * Eviction: topics which have not been stored or read for the TTL of their pattern
+	 * (logic4mqtt.cache.ttl, pattern=seconds) are removed, and if there are more than
+	 * logic4mqtt.cache.maxentries topics, the least recently used ones are removed.
+	 * Topics matched by an event handler, our own status topics and topics with a
+	 * long-range history are pinned and never evicted
+	 */
+	private static final int MAX_ENTRIES=Integer.getInteger("logic4mqtt.cache.maxentries",0).intValue();
+	private static final Map<TopicPattern,Long> ttls=parsePatternSettings(System.getProperty("logic4mqtt.cache.ttl"),"cache TTL");
+	private static final LongAdder hits=new LongAdder(), misses=new LongAdder();
+	private static long evicted, expired;
+	/* Whether a sweep for exceeding the limit is scheduled */
+	private static final AtomicBoolean evictPending=new AtomicBoolean();
+	/* Only warn every 10 minutes about pinned entries exceeding the limit */
+	private static final long PINNED_WARNING_INTERVAL=10*60*1000;
+	private static long lastPinnedWarning;
+
+	/* Idle time in ms after which the topic is removed, 0 for never */
+	private final long ttl;
+	private volatile long lastAccess=System.currentTimeMillis();
+	/* Set when the entry is removed from the cache, guarded by the TopicCache */
+	private boolean removed;
+
+	private void touch(long now)
+	{
+		// Avoid writing the shared field on every single read
+		if(now-lastAccess>1000)
+			lastAccess=now;
+	}
+
+	private boolean isPinned()
+	{
+		if(series!=null || topicAggregates!=null)
+			return true;
+		String topic=handle.toString();
+		if(topic.startsWith(MQTTHandler.getTopicPrefix()+"status/"))
+			return true;
+		return EventHandler.hasHandlerFor(handle);
+	}
+
+	private static void remove(TopicCache t)
+	{
+		// Stores which come later see the mark and retry with a new entry
+		synchronized(t)
+		{
+			if(t.removed)
+				return;
+			t.removed=true;
+		}
+		topics.remove(t.handle,t);
+		Set<View> matched=new HashSet<>();
+		synchronized(views)
+		{
+			viewIndex.collect(t.handle,matched);
+		}
+		for(View v:matched)
+			v.topics.remove(t);
+		SharedCacheFile sf=sharedFile;
+		if(sf!=null)
+			sf.remove(t.handle);
+		t.handle.release();
+	}
+
+	/*
+	 * Schedules a sweep for exceeding the limit, unless one is already pending. Sweeping is
+	 * not done inline, as it scans and sorts the whole cache
+	 */
+	private static void requestEvict()
 	{
-		return lastStoreWasRefresh;
+		if(evictPending.compareAndSet(false,true))
+		{
+			Main.t.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					evictPending.set(false);
+					evict();
+				}
+			},1000);
+		}
 	}
-	private void storeValue(Object newValue,Object fullValue)
+
+	/*
+	 * Removes expired topics and, if above the limit, the least recently used ones.
+	 * To avoid sweeping on every new topic, LRU eviction goes down to 90% of the limit
+	 */
+	static synchronized void evict()
 	{
-		System.arraycopy(values,0,values,1,values.length-1);
-		values[0]=new TopicValue(newValue,new Date(),fullValue);
-		if(changedValues[0]!=null && (newValue==changedValues[0] || (newValue!=null && newValue.equals(changedValues[0].value))))
+		long now=System.currentTimeMillis();
+		boolean overLimit=MAX_ENTRIES>0 && topics.size()>MAX_ENTRIES;
+		List<TopicCache> candidates=new ArrayList<>();
+		for(TopicCache t:topics.values())
 		{
-			changedValues[0].markAsRefreshed();
-			lastStoreWasRefresh=true;
+			if(t.ttl>0 && now-t.lastAccess>t.ttl)
+			{
+				if(!t.isPinned())
+				{
+					remove(t);
+					expired++;
+				}
+			}
+			else if(overLimit)
+				candidates.add(t);
+		}
+		int excess=topics.size()-MAX_ENTRIES*9/10;
+		if(!overLimit || excess<=0)
 			return;
+		Collections.sort(candidates,new Comparator<TopicCache>(){
+			@Override
+			public int compare(TopicCache t1,TopicCache t2)
+			{
+				return Long.compare(t1.lastAccess,t2.lastAccess);
+			}
+		});
+		for(TopicCache t:candidates)
+		{
+			if(excess<=0)
+				break;
+			if(t.isPinned())
+				continue;
+			remove(t);
+			evicted++;
+			excess--;
+		}
+		if(excess>0 && now-lastPinnedWarning>=PINNED_WARNING_INTERVAL)
+		{
+			lastPinnedWarning=now;
+			L.warning("TopicCache still exceeds "+MAX_ENTRIES+" entries after eviction, "+excess+" remaining entries are pinned");
+		}
+	}
+
+	/*
+	 * Rough estimate of the heap used by this entry, assuming compressed oops
+	 */
+	private long estimateMemory()
+	{
+		long size=64+32+handle.getSegmentIDCount()*4+values.estimateMemory()+changedValues.estimateMemory();
+		// Unsynchronized, a concurrent store may or may not be accounted for
+		for(byte p[]:values.payloads)
+			if(p!=null)
+				size+=16+p.length;
+		return size;
+	}
+
+	public static String getCmdlineSummary()
+	{
+		long mem=0;
+		int pinned=0;
+		for(TopicCache t:topics.values())
+		{
+			mem+=t.estimateMemory();
+			if(t.isPinned())
+				pinned++;
+		}
+		synchronized(TopicCache.class)
+		{
+			return "entries="+topics.size()+"\tmaxentries="+MAX_ENTRIES+"\tpinned="+pinned+"\thits="+hits.sum()+"\tmisses="+misses.sum()
+				+"\tevicted="+evicted+"\texpired="+expired+"\tsegments="+TopicHandle.getSegmentCount()+"\testimatedmemory="+mem/1024+"KB"
+				+(sharedFile!=null?"\nsharedfile: "+sharedFile.getCmdlineSummary():"");
+		}
+	}
+
+	public final TopicHandle handle;
+	/*
+	 * Stores are serialized on the TopicCache, and take the write lock only while updating
+	 * the rings. Readers never lock: they copy a slot under an optimistic read stamp, which
+	 * works as a seqlock, and retry if a store happened meanwhile
+	 */
+	private final StampedLock lock=new StampedLock();
+	/* All stored values, and only those which were changes (as opposed to refreshes) */
+	private final Ring values, changedValues;
+	/* Number of stores so far, and the number of those which were restored from a snapshot file */
+	private long seq, restoredSeq;
+	/* The last payload as received, also for numbers */
+	private volatile byte lastPayload[];
+
+	private TopicCache(TopicHandle handle,String topic)
+	{
+		this.handle=handle;
+		int depth=getHistoryDepth(topic);
+		ttl=getPatternSetting(ttls,topic,0)*1000;
+		values=new Ring(depth);
+		changedValues=new Ring(depth);
+		series=hasSeries(topic)?new TimeSeries(seriesRetention[0],seriesRetention[1],seriesRetention[2]):null;
+	}
+
+	/*
+	 * Topics matching one of the patterns in logic4mqtt.history.topics keep a long-range history
+	 * of their numeric values. logic4mqtt.history.retention sets the retention of the raw, minute
+	 * and hour tiers in hours
+	 */
+	private static final List<TopicPattern> seriesPatterns=new ArrayList<>();
+	private static final long seriesRetention[]={ 24*3600*1000L, 7*24*3600*1000L, 365*24*3600*1000L };
+	static
+	{
+		String sp=System.getProperty("logic4mqtt.history.topics");
+		if(sp!=null)
+		{
+			for(String p:sp.split(","))
+			{
+				p=p.trim();
+				if(!p.isEmpty())
+					seriesPatterns.add(TopicPattern.compile(convertStatusTopic(p)));
+			}
+		}
+		String rp=System.getProperty("logic4mqtt.history.retention");
+		if(rp!=null)
+		{
+			String r[]=rp.split(",");
+			for(int ix=0;ix<r.length && ix<seriesRetention.length;ix++)
+				seriesRetention[ix]=(long)(Double.parseDouble(r[ix].trim())*3600*1000);
 		}
-		System.arraycopy(changedValues,0,changedValues,1,changedValues.length-1);
-		changedValues[0]=new TopicValue(newValue,new Date(),fullValue);
-		lastStoreWasRefresh=false;
 	}
 
-	private TopicCache(String topic)
+	private static boolean hasSeries(String topic)
 	{
-		this.topic=topic;
+		for(TopicPattern p:seriesPatterns)
+		{
+			if(p.matches(topic))
+				return true;
+		}
+		return false;
 	}
 
-	public final String topic;
+	/* Long-range history, or null if not enabled for this topic */
+	private final TimeSeries series;
+
+	/*
+	 * Returns the long-range history of a topic between "from" and "to" in the given
+	 * resolution (null to pick the finest one which covers "from"), or null if no
+	 * history is kept for the topic
+	 */
+	public static List<TimeSeries.Point> getHistory(String topic,long from,long to,TimeSeries.Resolution res)
+	{
+		TopicCache t=get(topic);
+		if(t==null || t.series==null)
+			return null;
+		return t.series.query(from,to,res);
+	}
+
+	/*
+	 * Returns null if the entry has been removed from the cache, the value is not stored then
+	 */
+	private Snapshot storeValue(Incoming in)
+	{
+		long now=System.currentTimeMillis();
+		touch(now);
+		Snapshot snapshot;
+		synchronized(this)
+		{
+			if(removed)
+				return null;
+			// Only stores modify the rings, so comparing does not need the write lock
+			boolean refresh=changedValues.headEquals(in);
+			if(refresh)
+			{
+				// Keep only one copy of identical payloads
+				byte current[]=changedValues.payloads[changedValues.head];
+				if(current!=null && Arrays.equals(current,in.payload))
+					in.payload=current;
+			}
+			long stamp=lock.writeLock();
+			try
+			{
+				seq++;
+				if(refresh)
+					changedValues.refreshed[changedValues.head]=now;
+				else
+					changedValues.add(seq,now,in);
+				values.add(seq,now,in);
+			}
+			finally
+			{
+				lock.unlockWrite(stamp);
+			}
+			lastPayload=in.payload!=null?in.payload:in.raw;
+			if(series!=null)
+				addToSeries(now,in);
+			snapshot=new Snapshot(this,seq,seq==restoredSeq+1,refresh);
+		}
+		TopicAggregate ag[]=topicAggregates;
+		if(ag!=null)
+		{
+			Double v=(in.kind==KIND_INT || in.kind==KIND_DOUBLE)?Double.valueOf(Double.longBitsToDouble(in.data)):toNumber(snapshot.getValue());
+			for(TopicAggregate a:ag)
+				a.update(this,v);
+		}
+		return snapshot;
+	}
+
+	private void addToSeries(long now,Incoming in)
+	{
+		if(in.kind==KIND_INT || in.kind==KIND_DOUBLE)
+			series.add(now,Double.longBitsToDouble(in.data));
+		else if(in.kind==KIND_OBJECT)
+		{
+			Object v=decode(in.payload,in.kind,in.data)[0];
+			if(v instanceof Number)
+				series.add(now,((Number)v).doubleValue());
+		}
+	}
 
+	/*
+	 * Reads the "which"th newest value of the ring, ignoring values stored after store number "atSeq".
+	 * The slot is only copied here; decoding happens later in the TopicValue
+	 */
+	private TopicValue read(Ring r,int which,long atSeq)
+	{
+		for(;;)
+		{
+			long stamp=lock.tryOptimisticRead();
+			if(stamp==0)
+			{
+				// A store is in progress, which only takes a moment
+				Thread.yield();
+				continue;
+			}
+			TopicValue tv=r.get(which,atSeq,restoredSeq);
+			if(lock.validate(stamp))
+				return tv;
+		}
+	}
+
+	/*
+	 * The last payload, or null if nothing has been stored since startup
+	 */
+	private byte[] getLivePayload()
+	{
+		for(;;)
+		{
+			long stamp=lock.tryOptimisticRead();
+			boolean live=seq>restoredSeq;
+			byte p[]=lastPayload;
+			if(lock.validate(stamp))
+				return live?p:null;
+			Thread.yield();
+		}
+	}
+
+	/*
+	 * Writes the state of this topic for a snapshot file
+	 */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		byte topicBytes[]=handle.toString().getBytes(StandardCharsets.UTF_8);
+		// Holds off stores to this topic for a moment, but not readers
+		long stamp=lock.readLock();
+		try
+		{
+			out.writeShort(topicBytes.length);
+			out.write(topicBytes);
+			out.writeLong(seq);
+			byte lp[]=lastPayload;
+			if(lp==null)
+				out.writeInt(-1);
+			else
+			{
+				out.writeInt(lp.length);
+				out.write(lp);
+			}
+			values.writeTo(out);
+			changedValues.writeTo(out);
+		}
+		finally
+		{
+			lock.unlockRead(stamp);
+		}
+		out.writeBoolean(series!=null);
+		if(series!=null)
+			series.writeTo(out);
+	}
+
+	/*
+	 * Restores a topic written by writeTo(). Must be called before any values are stored
+	 */
+	static void restore(ByteBuffer b)
+	{
+		byte topicBytes[]=new byte[b.getShort()&0xffff];
+		b.get(topicBytes);
+		String topic=new String(topicBytes,StandardCharsets.UTF_8);
+		TopicCache t=new TopicCache(TopicHandle.of(topic),topic);
+		try
+		{
+			t.readFrom(b);
+		}
+		catch(RuntimeException e)
+		{
+			t.handle.release();
+			throw e;
+		}
+		if(topics.putIfAbsent(t.handle,t)==null)
+			addToViews(t);
+		else
+			t.handle.release();
+	}
+
+	private void readFrom(ByteBuffer b)
+	{
+		seq=b.getLong();
+		restoredSeq=seq;
+		int len=b.getInt();
+		if(len>b.remaining())
+			throw new BufferUnderflowException();
+		if(len>=0)
+		{
+			byte lp[]=new byte[len];
+			b.get(lp);
+			lastPayload=lp;
+		}
+		values.readFrom(b);
+		changedValues.readFrom(b);
+		if(b.get()!=0)
+		{
+			// If the topic is not configured for a history anymore, it's read and discarded
+			TimeSeries ts=series;
+			if(ts==null)
+				ts=new TimeSeries(0,0,0);
+			ts.readFrom(b);
+		}
+	}
+
+	/*
+	 * Payload kinds. Plain numeric payloads are kept as a double, without the payload itself
+	 */
+	private static final byte KIND_PLAIN=0;
+	private static final byte KIND_OBJECT=1;
+	private static final byte KIND_ARRAY=2;
+	private static final byte KIND_INT=3;
+	private static final byte KIND_DOUBLE=4;
+
+	/*
+	 * A payload, classified before taking the lock
+	 */
+	private static class Incoming
+	{
+		final byte raw[];
+		/* Only kept for non-numeric payloads */
+		byte payload[];
+		final byte kind;
+		/* The raw double bits for numbers, the position of the "val" member for JSON objects */
+		final long data;
+
+		Incoming(byte payload[])
+		{
+			raw=payload;
+			byte typeHint=PayloadDecoder.typeHint(payload);
+			if(typeHint==PayloadDecoder.TYPE_OBJECT)
+			{
+				kind=KIND_OBJECT;
+				data=JsonMemberScanner.findMember(payload,"val");
+				this.payload=payload;
+				return;
+			}
+			if(typeHint==PayloadDecoder.TYPE_ARRAY)
+			{
+				kind=KIND_ARRAY;
+				data=0;
+				this.payload=payload;
+				return;
+			}
+			Number v=PayloadDecoder.convertPayloadToNumber(payload);
+			if(v instanceof Integer)
+			{
+				kind=KIND_INT;
+				data=Double.doubleToRawLongBits(((Integer)v).intValue());
+			}
+			else if(v instanceof Double)
+			{
+				kind=KIND_DOUBLE;
+				data=Double.doubleToRawLongBits(((Double)v).doubleValue());
+			}
+			else
+			{
+				kind=KIND_PLAIN;
+				data=0;
+				this.payload=payload;
+			}
+		}
+	}
+
+	/*
+	 * Fixed size ring of values, with the newest at "head". Slots are stored column-wise in
+	 * primitive arrays, so a store does not allocate anything
+	 */
+	private static class Ring
+	{
+		/* Number of the store which wrote the slot */
+		final long seqs[];
+		final long ts[];
+		/* Last time a value with the same value was stored */
+		final long refreshed[];
+		final long data[];
+		final byte kinds[];
+		final byte payloads[][];
+		int head, size;
+
+		Ring(int depth)
+		{
+			seqs=new long[depth];
+			ts=new long[depth];
+			refreshed=new long[depth];
+			data=new long[depth];
+			kinds=new byte[depth];
+			payloads=new byte[depth][];
+			// Always a valid index, even for optimistic readers
+			head=depth-1;
+		}
+
+		void add(long seq,long now,Incoming in)
+		{
+			add(seq,now,now,in.kind,in.data,in.payload);
+		}
+
+		private void add(long seq,long now,long lastRefresh,byte kind,long value,byte payload[])
+		{
+			int h=(head+1)%seqs.length;
+			seqs[h]=seq;
+			ts[h]=now;
+			refreshed[h]=lastRefresh;
+			data[h]=value;
+			kinds[h]=kind;
+			payloads[h]=payload;
+			head=h;
+			if(size<seqs.length)
+				size++;
+		}
+
+		/* Without the payloads */
+		long estimateMemory()
+		{
+			int depth=seqs.length;
+			return 16+4*(16+8*depth)+(16+depth)+(16+4*depth);
+		}
+
+		/* Oldest value first */
+		void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeInt(size);
+			for(int n=size-1;n>=0;n--)
+			{
+				int ix=(head+seqs.length-n)%seqs.length;
+				out.writeLong(seqs[ix]);
+				out.writeLong(ts[ix]);
+				out.writeLong(refreshed[ix]);
+				out.writeLong(data[ix]);
+				out.writeByte(kinds[ix]);
+				if(payloads[ix]==null)
+					out.writeInt(-1);
+				else
+				{
+					out.writeInt(payloads[ix].length);
+					out.write(payloads[ix]);
+				}
+			}
+		}
+
+		/* Values beyond the configured depth are dropped */
+		void readFrom(ByteBuffer b)
+		{
+			for(int n=b.getInt();n>0;n--)
+			{
+				long slotSeq=b.getLong();
+				long slotTs=b.getLong();
+				long slotRefreshed=b.getLong();
+				long slotData=b.getLong();
+				byte slotKind=b.get();
+				int len=b.getInt();
+				if(len>b.remaining())
+					throw new BufferUnderflowException();
+				byte payload[]=null;
+				if(len>=0)
+				{
+					payload=new byte[len];
+					b.get(payload);
+				}
+				add(slotSeq,slotTs,slotRefreshed,slotKind,slotData,payload);
+			}
+		}
+
+		/*
+		 * Whether the newest value has the same simple value as "in", as decoded. Plain numbers
+		 * are compared without decoding. Identical payloads and identical "val" members of JSON
+		 * objects are a fast path; otherwise, the values are decoded and compared, as differing
+		 * payloads can carry the same value (e.g. "1" and {"val":1})
+		 */
+		boolean headEquals(Incoming in)
+		{
+			if(size==0)
+				return false;
+			byte kind=kinds[head];
+			long d=data[head];
+			boolean headNumber=(kind==KIND_INT || kind==KIND_DOUBLE);
+			if(headNumber && (in.kind==KIND_INT || in.kind==KIND_DOUBLE))
+			{
+				// Decoded Integers and Doubles are never equal
+				return kind==in.kind && d==in.data;
+			}
+			byte p[]=payloads[head];
+			if(kind==in.kind && p!=null)
+			{
+				if(Arrays.equals(p,in.payload))
+					return true;
+				if(kind==KIND_OBJECT && d>=0 && in.data>=0 && JsonMemberScanner.sameValue(p,d,in.payload,in.data))
+					return true;
+			}
+			else if(!headNumber && p==null)
+				return false;
+			try
+			{
+				return Objects.equals(decode(p,kind,d)[0],decode(in.payload,in.kind,in.data)[0]);
+			}
+			catch(RuntimeException e)
+			{
+				// Malformed JSON, TopicValue falls back to the plain string for it
+				return false;
+			}
+		}
+
+		TopicValue get(int which,long atSeq,long restoredSeq)
+		{
+			int depth=seqs.length;
+			int ix=head;
+			int left=size;
+			// Skip values which were stored after the requested store
+			while(left>0 && seqs[ix]>atSeq)
+			{
+				ix=(ix+depth-1)%depth;
+				left--;
+			}
+			if(which<0 || which>=left)
+				return null;
+			ix=(ix+depth-which)%depth;
+			return new TopicValue(kinds[ix],data[ix],payloads[ix],ts[ix],refreshed[ix],seqs[ix]<=restoredSeq);
+		}
+	}
+
+	static Object[] decode(byte payload[],byte kind,long data)
+	{
+		switch(kind)
+		{
+			case KIND_INT:
+				return new Object[]{Integer.valueOf((int)Double.longBitsToDouble(data)),null};
+			case KIND_DOUBLE:
+				return new Object[]{Double.valueOf(Double.longBitsToDouble(data)),null};
+			case KIND_OBJECT:
+				return PayloadDecoder.decode(payload,PayloadDecoder.TYPE_OBJECT,data);
+			case KIND_ARRAY:
+				return PayloadDecoder.decode(payload,PayloadDecoder.TYPE_ARRAY,JsonMemberScanner.NOT_FOUND);
+			default:
+				return PayloadDecoder.decode(payload,PayloadDecoder.TYPE_PLAIN,JsonMemberScanner.NOT_FOUND);
+		}
+	}
+
+	/*
+	 * A value as read from the cache. The payload is only decoded on first access of the value,
+	 * and the decoded result is kept
+	 */
 	static public class TopicValue
 	{
-		private TopicValue(Object value, Date ts,Object fullValue)
+		private TopicValue(byte kind,long data,byte payload[],long ts,long lastRefresh,boolean restored)
 		{
-			this.value=value;
-			this.ts=ts;
-			this.lastRefresh=ts;
-			this.fullValue=fullValue;
+			this.kind=kind;
+			this.data=data;
+			this.payload=payload;
+			this.ts=new Date(ts);
+			this.lastRefresh=new Date(lastRefresh);
+			this.restored=restored;
 		}
-		public final Object value,fullValue;
+		private final byte kind;
+		private final long data;
+		private final byte payload[];
+		private Object value,fullValue;
+		private volatile boolean decoded;
 		public final Date ts;
-		public Date lastRefresh;
-		void markAsRefreshed()
+		public final Date lastRefresh;
+		/* Whether the value was restored from a snapshot file, instead of being received since startup */
+		public final boolean restored;
+		public Object getValue()
+		{
+			decode();
+			return value;
+		}
+		public Object getFullValue()
+		{
+			decode();
+			return fullValue;
+		}
+		private void decode()
+		{
+			if(decoded)
+				return;
+			synchronized(this)
+			{
+				if(decoded)
+					return;
+				try
+				{
+					Object res[]=TopicCache.decode(payload,kind,data);
+					value=res[0];
+					fullValue=res[1];
+				}
+				catch(RuntimeException e)
+				{
+					String s=new String(payload,StandardCharsets.UTF_8);
+					Logger.getLogger(TopicCache.class.getName()).log(Level.WARNING,"Unable to decode payload "+s+", treating it as plain string",e);
+					value=s;
+					fullValue=null;
+				}
+				decoded=true;
+			}
+		}
+	}
+
+	/*
+	 * The state of a topic as of a particular store. Values stored later are not visible
+	 * through it, as long as they have not pushed the relevant values out of the history
+	 */
+	static public class Snapshot
+	{
+		private final TopicCache t;
+		private final long seq;
+		private final boolean firstValue, lastStoreWasRefresh;
+		private TopicValue current;
+
+		private Snapshot(TopicCache t,long seq,boolean firstValue,boolean lastStoreWasRefresh)
+		{
+			this.t=t;
+			this.seq=seq;
+			this.firstValue=firstValue;
+			this.lastStoreWasRefresh=lastStoreWasRefresh;
+		}
+		private TopicValue getCurrent()
+		{
+			if(current==null)
+				current=t.read(t.changedValues,0,seq);
+			return current;
+		}
+		public Object getValue()
+		{
+			TopicValue tv=getCurrent();
+			return tv!=null?tv.getValue():null;
+		}
+		public Object getFullValue()
+		{
+			TopicValue tv=getCurrent();
+			return tv!=null?tv.getFullValue():null;
+		}
+		public Object getPreviousValue()
 		{
-			lastRefresh=new Date();
+			TopicValue tv=t.read(t.changedValues,1,seq);
+			if(tv!=null)
+				return tv.getValue();
+			return null;
+		}
+		public Date getPreviousTimestamp()
+		{
+			TopicValue tv=t.read(t.changedValues,1,seq);
+			if(tv!=null)
+				return tv.ts;
+			return null;
+		}
+		TopicHandle getTopic()
+		{
+			return t.handle;
+		}
+		/* Whether the last store was the first value received for this topic since startup */
+		public boolean isFirstValue()
+		{
+			return firstValue;
+		}
+		/* Whether the last store was a refresh of the previous value */
+		public boolean wasRefreshed()
+		{
+			return lastStoreWasRefresh;
 		}
 	}
-	private final TopicValue values[]=new TopicValue[10];
-	private final TopicValue changedValues[]=new TopicValue[10];
-	private boolean lastStoreWasRefresh;
 
 	static {
 		Main.t.schedule(new TimerTask(){
@@ -197,5 +1391,17 @@ public class TopicCache
 				L.info("TopicCache contains "+topics.size()+" entries");
 			}
 		},5000,5*60*1000);
+		if(MAX_ENTRIES>0 || !ttls.isEmpty())
+		{
+			Main.t.schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					evict();
+				}
+			},60*1000,60*1000);
+		}
 	}
+
+	private static final Logger L=Logger.getLogger(TopicCache.class.getName());
 }
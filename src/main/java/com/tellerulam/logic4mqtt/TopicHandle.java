@@ -0,0 +1,196 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * A topic, stored as a sequence of segment ids. The segments themselves are interned
+ * in a dictionary shared by all topics, as typical installations have huge numbers of
+ * topics consisting of a few distinct prefixes and names.
+ *
+ * Handles created with of() hold a reference to each of their segments until they are
+ * released, which the TopicCache does when it removes a topic. Segments which are not
+ * referenced anymore are removed from the dictionary, so lookups don't find them anymore.
+ * Their ids are never reused and their names are kept, so handles which are still around
+ * keep printing (and comparing) correctly; a segment which comes back gets a new id.
+ */
+public final class TopicHandle
+{
+	private static final ConcurrentMap<String,Integer> segmentIDs=new ConcurrentHashMap<>();
+	/* Indexed by segment id; replaced as a whole when it grows, writers synchronize on segmentIDs */
+	private static volatile String segmentNames[]=new String[256];
+	/* Indexed by segment id; guarded by segmentIDs */
+	private static int refCounts[]=new int[256];
+	private static int segmentCount;
+
+	private static final int STATUS_ID=of("status").ids[0];
+
+	private final int ids[];
+	private final int hash;
+
+	private TopicHandle(int ids[])
+	{
+		this.ids=ids;
+		this.hash=Arrays.hashCode(ids);
+	}
+
+	/*
+	 * Returns the id of a segment, adding it to the dictionary if necessary, and counts a
+	 * reference to it. Callers synchronize on segmentIDs
+	 */
+	private static int intern(String segment)
+	{
+		Integer id=segmentIDs.get(segment);
+		if(id!=null)
+		{
+			refCounts[id.intValue()]++;
+			return id.intValue();
+		}
+		String names[]=segmentNames;
+		int newID=segmentCount++;
+		if(newID==names.length)
+		{
+			names=Arrays.copyOf(names,names.length*2);
+			refCounts=Arrays.copyOf(refCounts,names.length);
+		}
+		names[newID]=segment;
+		refCounts[newID]=1;
+		segmentNames=names;
+		// Only published after the name is visible
+		segmentIDs.put(segment,Integer.valueOf(newID));
+		return newID;
+	}
+
+	/*
+	 * Returns the handle for a topic, adding unknown segments to the dictionary. The handle
+	 * references its segments until it is released
+	 */
+	static TopicHandle of(String topic)
+	{
+		String segs[]=topic.split("/",-1);
+		int ids[]=new int[segs.length];
+		synchronized(segmentIDs)
+		{
+			for(int ix=0;ix<segs.length;ix++)
+				ids[ix]=intern(segs[ix]);
+		}
+		return new TopicHandle(ids);
+	}
+
+	/*
+	 * Drops the references of a handle returned by of(). Segments without references are
+	 * removed from the dictionary; handles with them don't equal any handle created later
+	 */
+	void release()
+	{
+		synchronized(segmentIDs)
+		{
+			String names[]=segmentNames;
+			for(int id:ids)
+			{
+				if(--refCounts[id]==0)
+					segmentIDs.remove(names[id]);
+			}
+		}
+	}
+
+	/*
+	 * Returns the handle for a topic, or null if one of its segments is unknown --
+	 * in which case no handle for the topic can exist
+	 */
+	static TopicHandle lookup(String topic)
+	{
+		int ids[]=lookupSegments(topic.split("/",-1));
+		return ids!=null?new TopicHandle(ids):null;
+	}
+
+	/*
+	 * Returns the ids of the given segments, or null if one of them is unknown
+	 */
+	static int[] lookupSegments(String segs[])
+	{
+		int ids[]=new int[segs.length];
+		for(int ix=0;ix<segs.length;ix++)
+		{
+			Integer id=segmentIDs.get(segs[ix]);
+			if(id==null)
+				return null;
+			ids[ix]=id.intValue();
+		}
+		return ids;
+	}
+
+	boolean startsWith(int prefix[])
+	{
+		if(prefix.length>ids.length)
+			return false;
+		for(int ix=0;ix<prefix.length;ix++)
+			if(ids[ix]!=prefix[ix])
+				return false;
+		return true;
+	}
+
+	/*
+	 * The (interned) segment strings
+	 */
+	String[] getSegments()
+	{
+		String names[]=segmentNames;
+		String segs[]=new String[ids.length];
+		for(int ix=0;ix<ids.length;ix++)
+			segs[ix]=names[ids[ix]];
+		return segs;
+	}
+
+	/*
+	 * The topic with a "/status/" function replaced by "//", as passed to scripts.
+	 * Equivalent to TopicCache.removeStatusFunction(toString())
+	 */
+	String getDisplayName()
+	{
+		if(ids.length<3 || ids[1]!=STATUS_ID)
+			return toString();
+		String names[]=segmentNames;
+		StringBuilder sb=new StringBuilder(names[ids[0]]).append("/");
+		for(int ix=2;ix<ids.length;ix++)
+			sb.append('/').append(names[ids[ix]]);
+		return sb.toString();
+	}
+
+	int getSegmentIDCount()
+	{
+		return ids.length;
+	}
+
+	static int getSegmentCount()
+	{
+		return segmentIDs.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		String names[]=segmentNames;
+		StringBuilder sb=new StringBuilder(names[ids[0]]);
+		for(int ix=1;ix<ids.length;ix++)
+			sb.append('/').append(names[ids[ix]]);
+		return sb.toString();
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(this==obj)
+			return true;
+		if(!(obj instanceof TopicHandle))
+			return false;
+		TopicHandle other=(TopicHandle)obj;
+		return hash==other.hash && Arrays.equals(ids,other.ids);
+	}
+}
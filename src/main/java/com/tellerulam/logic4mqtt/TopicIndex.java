@@ -0,0 +1,220 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+
+/*
+ * Maps topic patterns to values, and finds all values whose pattern matches a given topic.
+ *
+ * Indexable patterns are stored in a trie of topic segments, so a lookup only follows
+ * the segments of the topic. Patterns which require a full regex match are kept in a
+ * (hopefully small) residual list which is scanned linearly.
+ *
+ * Not thread-safe; callers must synchronize.
+ */
+class TopicIndex<T>
+{
+	private static class Node<T>
+	{
+		Map<String,Node<T>> literals;
+		/* Child for "+" (exactly one level) and ".*" (one or more levels) */
+		Node<T> single, any;
+		/* Values whose pattern ends at this node, and values with a trailing "#" at this node */
+		List<T> values, multiValues;
+
+		boolean isEmpty()
+		{
+			return literals==null && single==null && any==null && values==null && multiValues==null;
+		}
+	}
+
+	private static class Residual<T>
+	{
+		final TopicPattern pattern;
+		final T value;
+		Residual(TopicPattern pattern,T value)
+		{
+			this.pattern=pattern;
+			this.value=value;
+		}
+	}
+
+	private final Node<T> root=new Node<>();
+	private final List<Residual<T>> residuals=new ArrayList<>();
+	private int size;
+
+	void add(TopicPattern pattern,T value)
+	{
+		size++;
+		String segments[]=pattern.getSegments();
+		if(segments==null)
+		{
+			residuals.add(new Residual<>(pattern,value));
+			return;
+		}
+		Node<T> n=root;
+		for(int ix=0;ix<segments.length;ix++)
+		{
+			String seg=segments[ix];
+			if(TopicPattern.SEG_MULTI.equals(seg) && ix==segments.length-1)
+			{
+				if(n.multiValues==null)
+					n.multiValues=new ArrayList<>(1);
+				n.multiValues.add(value);
+				return;
+			}
+			n=child(n,seg);
+		}
+		if(n.values==null)
+			n.values=new ArrayList<>(1);
+		n.values.add(value);
+	}
+
+	private Node<T> child(Node<T> n,String seg)
+	{
+		if(TopicPattern.SEG_SINGLE.equals(seg))
+		{
+			if(n.single==null)
+				n.single=new Node<>();
+			return n.single;
+		}
+		if(TopicPattern.SEG_ANY.equals(seg))
+		{
+			if(n.any==null)
+				n.any=new Node<>();
+			return n.any;
+		}
+		if(n.literals==null)
+			n.literals=new HashMap<>();
+		Node<T> c=n.literals.get(seg);
+		if(c==null)
+			n.literals.put(seg,c=new Node<>());
+		return c;
+	}
+
+	boolean remove(TopicPattern pattern,T value)
+	{
+		String segments[]=pattern.getSegments();
+		boolean removed;
+		if(segments==null)
+		{
+			removed=false;
+			for(Iterator<Residual<T>> i=residuals.iterator();i.hasNext();)
+			{
+				if(i.next().value.equals(value))
+				{
+					i.remove();
+					removed=true;
+					break;
+				}
+			}
+		}
+		else
+			removed=remove(root,segments,0,value);
+		if(removed)
+			size--;
+		return removed;
+	}
+
+	private boolean remove(Node<T> n,String segments[],int ix,T value)
+	{
+		if(ix==segments.length)
+		{
+			if(n.values==null || !n.values.remove(value))
+				return false;
+			if(n.values.isEmpty())
+				n.values=null;
+			return true;
+		}
+		String seg=segments[ix];
+		if(TopicPattern.SEG_MULTI.equals(seg) && ix==segments.length-1)
+		{
+			if(n.multiValues==null || !n.multiValues.remove(value))
+				return false;
+			if(n.multiValues.isEmpty())
+				n.multiValues=null;
+			return true;
+		}
+		Node<T> c;
+		if(TopicPattern.SEG_SINGLE.equals(seg))
+			c=n.single;
+		else if(TopicPattern.SEG_ANY.equals(seg))
+			c=n.any;
+		else
+			c=n.literals!=null?n.literals.get(seg):null;
+		if(c==null || !remove(c,segments,ix+1,value))
+			return false;
+		// Prune nodes which no longer lead anywhere
+		if(c.isEmpty())
+		{
+			if(c==n.single)
+				n.single=null;
+			else if(c==n.any)
+				n.any=null;
+			else
+			{
+				n.literals.remove(seg);
+				if(n.literals.isEmpty())
+					n.literals=null;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Adds all values whose pattern matches the topic to "result". As a value may be
+	 * reached through more than one path when ".*" segments are involved, callers
+	 * should use a Set
+	 */
+	void collect(TopicHandle topic,Collection<? super T> result)
+	{
+		collect(root,topic.getSegments(),0,result);
+		if(!residuals.isEmpty())
+		{
+			String ts=topic.toString();
+			for(Residual<T> r:residuals)
+				if(r.pattern.matches(ts))
+					result.add(r.value);
+		}
+	}
+
+	void collect(String topic,Collection<? super T> result)
+	{
+		collect(root,topic.split("/",-1),0,result);
+		for(Residual<T> r:residuals)
+			if(r.pattern.matches(topic))
+				result.add(r.value);
+	}
+
+	private void collect(Node<T> n,String segments[],int ix,Collection<? super T> result)
+	{
+		if(n.multiValues!=null)
+			result.addAll(n.multiValues);
+		if(ix==segments.length)
+		{
+			if(n.values!=null)
+				result.addAll(n.values);
+			return;
+		}
+		if(n.literals!=null)
+		{
+			Node<T> c=n.literals.get(segments[ix]);
+			if(c!=null)
+				collect(c,segments,ix+1,result);
+		}
+		if(n.single!=null)
+			collect(n.single,segments,ix+1,result);
+		if(n.any!=null)
+			for(int end=ix+1;end<=segments.length;end++)
+				collect(n.any,segments,end,result);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	int getResidualCount()
+	{
+		return residuals.size();
+	}
+}
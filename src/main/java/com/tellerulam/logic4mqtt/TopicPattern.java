@@ -0,0 +1,203 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+import java.util.regex.*;
+
+/*
+ * A compiled topic pattern, as used by event handlers and topic queries.
+ *
+ * Patterns are regular expressions. Additionally, a segment consisting only of "+",
+ * or a trailing segment consisting only of "#", is always interpreted as a MQTT topic
+ * filter wildcard, regardless of the other segments: "hm/status/+/STA.E" matches
+ * "hm/status/x/STATE", and not "hm/status///STATE". All other segments are used as
+ * regular expression as they are.
+ *
+ * Patterns which consist only of literal segments, MQTT wildcards and ".*" segments
+ * are "indexable" and can be placed into a TopicIndex; all other patterns require
+ * a full regex match.
+ */
+public class TopicPattern
+{
+	static final String SEG_SINGLE="+";
+	static final String SEG_MULTI="#";
+	static final String SEG_ANY=".*";
+
+	public static TopicPattern compile(String pattern)
+	{
+		String segments[]=pattern.split("/",-1);
+		boolean indexable=true, mqttWildcards=false;
+		for(int ix=0;ix<segments.length;ix++)
+		{
+			String seg=segments[ix];
+			if(SEG_SINGLE.equals(seg) || (SEG_MULTI.equals(seg) && ix==segments.length-1))
+				mqttWildcards=true;
+			else if(!SEG_ANY.equals(seg) && !isLiteral(seg))
+				indexable=false;
+		}
+		Pattern regex=Pattern.compile(mqttWildcards?translateWildcards(segments):pattern);
+		return new TopicPattern(pattern,indexable?segments:null,regex);
+	}
+
+	static boolean isLiteral(String seg)
+	{
+		for(int ix=0;ix<seg.length();ix++)
+		{
+			if("\\^$.|?*+()[]{}".indexOf(seg.charAt(ix))>=0)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Replaces the MQTT wildcard segments with the equivalent regular expression
+	 */
+	private static String translateWildcards(String segments[])
+	{
+		StringBuilder re=new StringBuilder();
+		for(int ix=0;ix<segments.length;ix++)
+		{
+			String seg=segments[ix];
+			if(SEG_MULTI.equals(seg) && ix==segments.length-1)
+			{
+				// "a/#" also matches "a" itself
+				if(ix==0)
+					re.append(".*");
+				else
+					re.append("(?:/.*)?");
+				break;
+			}
+			if(ix>0)
+				re.append('/');
+			if(SEG_SINGLE.equals(seg))
+				re.append("[^/]*");
+			else
+				re.append(seg);
+		}
+		return re.toString();
+	}
+
+	private TopicPattern(String pattern,String segments[],Pattern regex)
+	{
+		this.pattern=pattern;
+		this.segments=segments;
+		this.regex=regex;
+	}
+
+	private final String pattern;
+	private final String segments[];
+	private final Pattern regex;
+
+	public boolean matches(String topic)
+	{
+		return regex.matcher(topic).matches();
+	}
+
+	/*
+	 * Returns a MQTT topic filter which matches at least all topics this pattern matches
+	 */
+	String getCoveringFilter()
+	{
+		StringBuilder f=new StringBuilder();
+		String parts[]=segments;
+		if(parts==null)
+		{
+			// Top level alternations can match anything
+			if(pattern.indexOf('|')>=0)
+				return SEG_MULTI;
+			parts=pattern.split("/",-1);
+		}
+		for(int ix=0;ix<parts.length;ix++)
+		{
+			String seg=parts[ix];
+			if(SEG_MULTI.equals(seg) || SEG_ANY.equals(seg))
+				break;
+			if(segments==null && !SEG_SINGLE.equals(seg))
+			{
+				// Only use literal leading segments, and only if the following segment
+				// does not start with a quantifier applying to the "/"
+				if(!isLiteral(seg) || ix==parts.length-1 || startsWithQuantifier(parts[ix+1]))
+					break;
+			}
+			if(seg.indexOf('#')>=0)
+				seg=SEG_SINGLE;
+			f.append(seg);
+			f.append('/');
+			if(ix==parts.length-1)
+			{
+				// Complete pattern without wildcards
+				f.setLength(f.length()-1);
+				return f.toString();
+			}
+		}
+		f.append(SEG_MULTI);
+		return f.toString();
+	}
+
+	private static boolean startsWithQuantifier(String seg)
+	{
+		return !seg.isEmpty() && !SEG_SINGLE.equals(seg) && "?*+{".indexOf(seg.charAt(0))>=0;
+	}
+
+	/*
+	 * The leading segments every matching topic starts with
+	 */
+	String[] getLiteralPrefix()
+	{
+		String f[]=getCoveringFilter().split("/",-1);
+		int len=0;
+		while(len<f.length && !SEG_SINGLE.equals(f[len]) && !SEG_MULTI.equals(f[len]))
+			len++;
+		return Arrays.copyOf(f,len);
+	}
+
+	/*
+	 * Whether MQTT topic filter "f1" matches all topics that filter "f2" matches
+	 */
+	static boolean filterCovers(String f1,String f2)
+	{
+		String s1[]=f1.split("/",-1);
+		String s2[]=f2.split("/",-1);
+		for(int ix=0;ix<s1.length;ix++)
+		{
+			if(SEG_MULTI.equals(s1[ix]))
+				return true;
+			if(ix>=s2.length || SEG_MULTI.equals(s2[ix]))
+				return false;
+			if(!SEG_SINGLE.equals(s1[ix]) && !s1[ix].equals(s2[ix]))
+				return false;
+		}
+		return s1.length==s2.length;
+	}
+
+	/*
+	 * Reduces a collection of MQTT topic filters to the smallest subset which still
+	 * matches all topics the original filters matched
+	 */
+	static Set<String> minimizeFilters(Collection<String> filters)
+	{
+		Set<String> unique=new TreeSet<>(filters);
+		Set<String> res=new TreeSet<>();
+		outer: for(String f:unique)
+		{
+			for(String other:unique)
+				if(other!=f && filterCovers(other,f))
+					continue outer;
+			res.add(f);
+		}
+		return res;
+	}
+
+	/*
+	 * The pattern split into segments, or null if this pattern is not indexable
+	 */
+	String[] getSegments()
+	{
+		return segments;
+	}
+
+	@Override
+	public String toString()
+	{
+		return pattern;
+	}
+}
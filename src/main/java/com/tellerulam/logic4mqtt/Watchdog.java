@@ -0,0 +1,124 @@
+package com.tellerulam.logic4mqtt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/*
+ * Watches event and timer callbacks while they run. A callback running longer than
+ * logic4mqtt.events.budget milliseconds (default 10000, 0 = off) is logged once with
+ * the script it is in and its current stack, and counted as overrun of its handler.
+ *
+ * Handlers overrunning logic4mqtt.events.quarantine times (default 0 = never) are
+ * quarantined: depending on logic4mqtt.events.quarantineaction they are moved to a
+ * separate low-priority lane ("lane", the default) or removed ("disable").
+ */
+class Watchdog
+{
+	static final class Running
+	{
+		final Thread thread=Thread.currentThread();
+		final long start=System.nanoTime();
+		final EventHandler handler;
+		final String what;
+		boolean reported;
+
+		Running(EventHandler handler,String what)
+		{
+			this.handler=handler;
+			this.what=what;
+		}
+	}
+
+	private static final long BUDGET=Long.getLong("logic4mqtt.events.budget",10000).longValue();
+	private static final int QUARANTINE_AFTER=Integer.getInteger("logic4mqtt.events.quarantine",0).intValue();
+	private static final boolean QUARANTINE_DISABLE="disable".equalsIgnoreCase(System.getProperty("logic4mqtt.events.quarantineaction"));
+
+	private static final Map<Thread,Running> running=new ConcurrentHashMap<>();
+
+	/*
+	 * Called before running a callback. For event callbacks, "what" is the topic, for
+	 * timer callbacks (where handler is null) a description of the timer
+	 */
+	static Running begin(EventHandler handler,String what)
+	{
+		if(BUDGET<=0)
+			return null;
+		Running r=new Running(handler,what);
+		running.put(r.thread,r);
+		return r;
+	}
+
+	static void end(Running r)
+	{
+		if(r!=null)
+			running.remove(r.thread,r);
+	}
+
+	/*
+	 * Reports callbacks which have been running longer than the budget, returns how many
+	 * were newly reported
+	 */
+	static int check(long budgetNanos)
+	{
+		int cnt=0;
+		long now=System.nanoTime();
+		for(Running r:running.values())
+		{
+			if(r.reported || now-r.start<=budgetNanos)
+				continue;
+			r.reported=true;
+			cnt++;
+			StackTraceElement stack[]=r.thread.getStackTrace();
+			StringBuilder msg=new StringBuilder("Callback ");
+			if(r.handler!=null)
+				msg.append("of event handler ").append(r.handler).append(" for ");
+			msg.append(r.what);
+			String script=findScript(stack);
+			if(script!=null)
+				msg.append(" in script ").append(script);
+			msg.append(" running for more than ").append((now-r.start)/1000000).append("ms on thread ").append(r.thread.getName());
+			for(StackTraceElement ste:stack)
+				msg.append("\n\tat ").append(ste);
+			L.warning(msg.toString());
+			if(r.handler!=null)
+			{
+				long overruns=r.handler.getStats().recordOverrun();
+				if(QUARANTINE_AFTER>0 && overruns==QUARANTINE_AFTER)
+					r.handler.quarantine(QUARANTINE_DISABLE);
+			}
+		}
+		return cnt;
+	}
+
+	/*
+	 * Script engines report the script file name as the file name of its stack frames
+	 */
+	static String findScript(StackTraceElement stack[])
+	{
+		for(StackTraceElement ste:stack)
+		{
+			String fn=ste.getFileName();
+			if(fn!=null && !fn.endsWith(".java") && fn.indexOf('.')>0)
+				return fn+":"+ste.getLineNumber();
+		}
+		return null;
+	}
+
+	static {
+		if(BUDGET>0)
+		{
+			// Not on Main.t, as a task blocking that would also block the watchdog
+			long period=Math.max(100,BUDGET/4);
+			new Timer("Callback watchdog",true).schedule(new TimerTask(){
+				@Override
+				public void run()
+				{
+					check(BUDGET*1000000);
+				}
+			},period,period);
+		}
+	}
+
+	private static final Logger L=Logger.getLogger(Watchdog.class.getName());
+}
@@ -62,7 +62,7 @@ public class Events
 	public int onChangeTo(String topicPattern,Object value,EventCallbackInterface callback)
 	{
 		topicPattern=TopicCache.convertStatusTopic(topicPattern);
-		return EventHandler.createNewHandler(topicPattern, new Object[]{value}, true, callback, false, null, false);
+		return EventHandler.createNewHandler(topicPattern, new Object[]{value}, true, callback, false, null, false, false);
 	}
 	/**
 	 * Add an Event Handler on the specified topic pattern. It is triggered when the
@@ -76,7 +76,7 @@ public class Events
 	public int onChangeTo(String topicPattern,Object values[],EventCallbackInterface callback)
 	{
 		topicPattern=TopicCache.convertStatusTopic(topicPattern);
-		return EventHandler.createNewHandler(topicPattern, values, true, callback, false, null, false);
+		return EventHandler.createNewHandler(topicPattern, values, true, callback, false, null, false, false);
 	}
 	/**
 	 * Add an Event Handler on the specified topic pattern. It is triggered when the
@@ -89,7 +89,7 @@ public class Events
 	public int onChange(String topicPattern,EventCallbackInterface callback)
 	{
 		topicPattern=TopicCache.convertStatusTopic(topicPattern);
-		return EventHandler.createNewHandler(topicPattern, null, true, callback, false, null, false);
+		return EventHandler.createNewHandler(topicPattern, null, true, callback, false, null, false, false);
 	}
 	/**
 	 * Add an Event Handler on the specified topic pattern. It is triggered when the
@@ -102,7 +102,7 @@ public class Events
 	public int onUpdate(String topicPattern,EventCallbackInterface callback)
 	{
 		topicPattern=TopicCache.convertStatusTopic(topicPattern);
-		return EventHandler.createNewHandler(topicPattern, null, false, callback, false, null, false);
+		return EventHandler.createNewHandler(topicPattern, null, false, callback, false, null, false, false);
 	}
 
 	/**
@@ -116,6 +116,8 @@ public class Events
 	 *   <li>oneshot - bool: whether to remove the event handler after it run once
 	 *   <li>initial - bool: whether to check calling the callback once with the initial value when added
 	 *   <li>expires - string: timespec when handler expires
+	 *   <li>coalesce - bool: if the callback is still pending for a topic when a new value arrives,
+	 *       run it only once with the newest value instead of once per value
 	 *  </ul>
 	 * @return id of the new handler (to be used with e.g. remove)
 	 */
@@ -139,11 +141,12 @@ public class Events
 		boolean oneShot=ScriptEngineTools.interpretAsBoolean(params.get("oneshot"));
 		boolean change=ScriptEngineTools.interpretAsBoolean(params.get("change"));
 		boolean initial=ScriptEngineTools.interpretAsBoolean(params.get("initial"));
+		boolean coalesce=ScriptEngineTools.interpretAsBoolean(params.get("coalesce"));
 
 		String expires=(String)params.get("expires");
 
 		topicPattern=TopicCache.convertStatusTopic(topicPattern);
-		int eid=EventHandler.createNewHandler(topicPattern, vals, change, callback, oneShot, expires, initial);
+		int eid=EventHandler.createNewHandler(topicPattern, vals, change, callback, oneShot, expires, initial, coalesce);
 
 		return eid;
 	}
@@ -309,7 +312,7 @@ public class Events
 		topic=TopicCache.convertStatusTopic(topic);
 		TopicValue tv=TopicCache.getTopicValue(topic, generation);
 		if(tv!=null)
-			return tv.value;
+			return tv.getValue();
 		return null;
 	}
 
@@ -417,6 +420,118 @@ public class Events
 		return null;
 	}
 
+	/**
+	 * Get an aggregate over the values of all topics matching "topicPattern". It is
+	 * updated whenever one of the topics receives a new value, and can be read
+	 * at any time with getValue().
+	 *
+	 * Available functions are "sum", "avg", "min", "max", "count" (the number of
+	 * topics with a numeric value) and "any" (whether any value is non-zero).
+	 * Boolean values count as 1 and 0, other non-numeric values are ignored.
+	 *
+	 * Aggregates with the same parameters are only registered once.
+	 *
+	 * @param topicPattern
+	 * @param function
+	 * @return the aggregate
+	 */
+	public TopicAggregate aggregate(String topicPattern,String function)
+	{
+		return aggregate(topicPattern,function,null);
+	}
+
+	/**
+	 * Get an aggregate over the values of all topics matching "topicPattern", see
+	 * {@link Events#aggregate(String,String)}.
+	 *
+	 * Params:
+	 * <ul>
+	 * <li>publish: topic to publish (retained) the result to whenever it changes, e.g. "$totalpower"
+	 * </ul>
+	 *
+	 * @param topicPattern
+	 * @param function
+	 * @param params
+	 * @return the aggregate
+	 */
+	public TopicAggregate aggregate(String topicPattern,String function,Map<String,Object> params)
+	{
+		String publishTopic=null;
+		if(params!=null && params.get("publish")!=null)
+			publishTopic=TopicCache.convertSetTopic(params.get("publish").toString());
+		return TopicCache.aggregate(topicPattern,function,publishTopic);
+	}
+
+	/**
+	 * An array of instances of this helper class is returned by {@link Events#getHistory(String,Date,Date,String)}.
+	 * For raw samples, min, max and avg are the value and count is 1.
+	 */
+	static public class HistoryEntry
+	{
+		HistoryEntry(TimeSeries.Point p)
+		{
+			ts=new Date(p.ts);
+			min=p.min;
+			max=p.max;
+			avg=p.avg;
+			count=p.count;
+		}
+		public final Date ts;
+		public final double min, max, avg;
+		public final int count;
+	}
+
+	/**
+	 * Get the long-range history of a topic. This is only kept for topics matching
+	 * one of the patterns in logic4mqtt.history.topics.
+	 *
+	 * @param topic
+	 * @param from start of the period
+	 * @param to end of the period, or null for now
+	 * @param resolution "raw", "minute", "hour", or null to use the finest resolution still available for "from"
+	 * @return an array of objects with members "ts", "min", "max", "avg" and "count", or null if no history is kept for the topic
+	 */
+	public HistoryEntry[] getHistory(String topic,Date from,Date to,String resolution)
+	{
+		topic=TopicCache.convertStatusTopic(topic);
+		TimeSeries.Resolution res=null;
+		if(resolution!=null)
+			res=TimeSeries.Resolution.valueOf(resolution.toUpperCase());
+		List<TimeSeries.Point> points=TopicCache.getHistory(topic,from.getTime(),to!=null?to.getTime():System.currentTimeMillis(),res);
+		if(points==null)
+			return null;
+		HistoryEntry he[]=new HistoryEntry[points.size()];
+		for(int ix=0;ix<he.length;ix++)
+			he[ix]=new HistoryEntry(points.get(ix));
+		return he;
+	}
+
+	/**
+	 * Determine whether a cached value of a topic was restored from the cache snapshot file
+	 * (see logic4mqtt.cache.snapshotfile) instead of being received since startup.
+	 * Returns false if the topic or the specified generation is not known.
+	 *
+	 * @param topic
+	 * @param generation (0 = current, 1 = previous, ...)
+	 * @return true if the value was restored
+	 */
+	public boolean isRestoredValue(String topic,int generation)
+	{
+		topic=TopicCache.convertStatusTopic(topic);
+		TopicValue tv=TopicCache.getTopicValue(topic, generation);
+		return tv!=null && tv.restored;
+	}
+
+	/**
+	 * Determine whether the current value of a topic was restored from the cache snapshot file
+	 * @param topic
+	 * @return true if the value was restored
+	 */
+	public boolean isRestoredValue(String topic)
+	{
+		return isRestoredValue(topic,0);
+	}
+
 	/**
 	 * Request a value via a MQTT /get/ publish
 	 * @param topic
@@ -446,6 +561,7 @@ public class Events
 	 *   <li>oneshot - bool: whether to remove the event handler after it run once
 	 *   <li>initial - bool: whether to link once with the initial value when added
 	 *   <li>retain - bool: whether the setting occurs with the retain flag set
+	 *   <li>coalesce - bool: if a backlog builds up, only link the newest value
 	 * @return id of the new handler (to be used with e.g. remove)
 	 */
 	public int linkValue(String srcTopic,String destTopic,Map<String,Object> params)
@@ -454,6 +570,7 @@ public class Events
 		final boolean change=ScriptEngineTools.interpretAsBoolean(params.get("change"));
 		final boolean initial=ScriptEngineTools.interpretAsBoolean(params.get("initial"));
 		final boolean retain=ScriptEngineTools.interpretAsBoolean(params.get("retain"));
+		final boolean coalesce=ScriptEngineTools.interpretAsBoolean(params.get("coalesce"));
 
 		final String expires=(String)params.get("expires");
 
@@ -469,7 +586,7 @@ public class Events
 			}
 		};
 
-		int eid=EventHandler.createNewHandler(srcTopic, null, change, linker, oneShot, expires, initial);
+		int eid=EventHandler.createNewHandler(srcTopic, null, change, linker, oneShot, expires, initial, coalesce, EventExecutor.forJava());
 		return eid;
 	}
 
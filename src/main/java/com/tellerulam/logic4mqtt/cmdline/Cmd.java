@@ -9,12 +9,17 @@ public abstract class Cmd
 
 	static void initCommands()
 	{
+		add(new CmdCache());
 		add(new CmdEvents());
 		add(new CmdHelp());
+		add(new CmdIngest());
+		add(new CmdOutbound());
 		add(new CmdParseTime());
 		add(new CmdQuit());
+		add(new CmdStats());
 		add(new CmdTimers());
 		add(new CmdTimes());
+		add(new CmdValues());
 	}
 	private static void add(Cmd cmd)
 	{
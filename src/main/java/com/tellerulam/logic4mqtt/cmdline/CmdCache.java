@@ -0,0 +1,21 @@
+package com.tellerulam.logic4mqtt.cmdline;
+
+import java.io.*;
+
+import com.tellerulam.logic4mqtt.*;
+
+public class CmdCache extends Cmd
+{
+	CmdCache()
+	{
+		super("CACHE","Show topic cache statistics");
+	}
+
+	@Override
+	public void exec(PrintWriter w, ArgSplitter args) throws Exception
+	{
+		w.println(TopicCache.getCmdlineSummary());
+		w.println(".");
+	}
+
+}
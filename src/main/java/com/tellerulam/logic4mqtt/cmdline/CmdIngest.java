@@ -0,0 +1,25 @@
+package com.tellerulam.logic4mqtt.cmdline;
+
+import java.io.*;
+
+import com.tellerulam.logic4mqtt.*;
+
+public class CmdIngest extends Cmd
+{
+	CmdIngest()
+	{
+		super("INGEST","Show MQTT ingest queue statistics");
+	}
+
+	@Override
+	public void exec(PrintWriter w, ArgSplitter args) throws Exception
+	{
+		IngestQueue q=MQTTHandler.getIngestQueue();
+		if(q==null)
+			w.println("Ingest queue disabled");
+		else
+			w.println(q.getCmdlineSummary());
+		w.println(".");
+	}
+
+}
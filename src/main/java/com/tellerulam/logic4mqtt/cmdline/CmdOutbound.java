@@ -0,0 +1,21 @@
+package com.tellerulam.logic4mqtt.cmdline;
+
+import java.io.*;
+
+import com.tellerulam.logic4mqtt.*;
+
+public class CmdOutbound extends Cmd
+{
+	CmdOutbound()
+	{
+		super("OUTBOUND","Show statistics of published messages");
+	}
+
+	@Override
+	public void exec(PrintWriter w, ArgSplitter args) throws Exception
+	{
+		w.println(MQTTHandler.getPublishCombiner().getCmdlineSummary());
+		w.println(".");
+	}
+
+}
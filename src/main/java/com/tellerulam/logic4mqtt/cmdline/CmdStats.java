@@ -0,0 +1,22 @@
+package com.tellerulam.logic4mqtt.cmdline;
+
+import java.io.*;
+
+import com.tellerulam.logic4mqtt.*;
+
+public class CmdStats extends Cmd
+{
+	CmdStats()
+	{
+		super("STATS","Show execution statistics of event handlers");
+	}
+
+	@Override
+	public void exec(PrintWriter w, ArgSplitter args) throws Exception
+	{
+		for(EventHandler h:EventHandler.getAllHandlers())
+			w.println(h.getID()+"\t"+h.getStats().getCmdlineSummary());
+		w.println(".");
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.tellerulam.logic4mqtt.cmdline;
+
+import java.io.*;
+import java.util.*;
+
+import com.tellerulam.logic4mqtt.*;
+
+public class CmdValues extends Cmd
+{
+	CmdValues()
+	{
+		super("VALUES","List the cached values of all topics matching a pattern");
+	}
+
+	@Override
+	public void exec(PrintWriter w, ArgSplitter args) throws Exception
+	{
+		if(args.args.length<2)
+		{
+			w.println("Usage: VALUES <pattern>");
+			w.println(".");
+			return;
+		}
+		for(Iterator<Map.Entry<String,Object>> it=TopicCache.scanTopicValues(args.args[1]);it.hasNext();)
+		{
+			Map.Entry<String,Object> me=it.next();
+			w.print(me.getKey());
+			w.print('\t');
+			w.println(me.getValue());
+		}
+		w.println(".");
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class DestValueMatcherTest
+{
+	/* The comparison EventHandler did before destination values were compiled */
+	private static boolean reference(Object destvalues[],Object value)
+	{
+		Number valueAsNumber=ScriptEngineTools.convertToNumberIfPossible(value);
+		for(Object dv:destvalues)
+		{
+			if(valueAsNumber!=null && (dv instanceof Number))
+			{
+				if(valueAsNumber.doubleValue()==((Number)dv).doubleValue())
+					return true;
+			}
+			else if(value.toString().equals(dv.toString()))
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void testSameAsReference()
+	{
+		Object dvs[][]={
+			{ "OPEN", "TILTED" },
+			{ Integer.valueOf(1), Double.valueOf(2.5), "on" },
+			{ Double.valueOf(-0.0), Double.valueOf(Double.NaN), Long.valueOf(100) },
+			{ "1.0", Boolean.TRUE }
+		};
+		Object values[]={ "OPEN", "open", "TILTED", "CLOSED", "1", "1.0", Double.valueOf(1), Integer.valueOf(1), "2.50", "on", "0",
+			Double.valueOf(0.0), "-0", "NaN", Double.valueOf(Double.NaN), "100", Long.valueOf(100), "1e2", Boolean.TRUE, "true", "" };
+		for(Object dv[]:dvs)
+		{
+			DestValueMatcher m=new DestValueMatcher(dv);
+			for(Object v:values)
+				assertEquals(Arrays.asList(dv)+" "+v,reference(dv,v),m.matches(ScriptEngineTools.convertToNumberIfPossible(v),v.toString()));
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+public class EventExecutorTest
+{
+	@Test
+	public void testLanes() throws InterruptedException
+	{
+		EventExecutor.Partition p=new EventExecutor.Partition("test",4);
+		final Map<String,List<Integer>> seen=new ConcurrentHashMap<>();
+		final CountDownLatch done=new CountDownLatch(8*100);
+		// Blocks one lane, the others must still make progress
+		final CountDownLatch blocker=new CountDownLatch(1);
+		final String blockedTopic="test/blocked";
+		p.execute(blockedTopic,new Runnable(){
+			@Override
+			public void run()
+			{
+				try
+				{
+					blocker.await();
+				}
+				catch(InterruptedException e)
+				{
+					/* Ignore */
+				}
+			}
+		});
+		for(int ix=0;ix<100;ix++)
+		{
+			for(int t=0;t<8;t++)
+			{
+				final String topic="test/"+t;
+				final int n=ix;
+				p.execute(topic,new Runnable(){
+					@Override
+					public void run()
+					{
+						assertSame(p,EventExecutor.getCurrent());
+						List<Integer> l=seen.get(topic);
+						if(l==null)
+						{
+							l=new CopyOnWriteArrayList<>();
+							seen.put(topic,l);
+						}
+						l.add(Integer.valueOf(n));
+						done.countDown();
+					}
+				});
+			}
+		}
+		int lane=(blockedTopic.hashCode()&0x7fffffff)%4;
+		int unblocked=0;
+		for(int t=0;t<8;t++)
+			if((("test/"+t).hashCode()&0x7fffffff)%4!=lane)
+				unblocked++;
+		// Topics on the other lanes complete while one lane is blocked
+		long until=System.currentTimeMillis()+5000;
+		while(done.getCount()>(8-unblocked)*100 && System.currentTimeMillis()<until)
+			Thread.sleep(10);
+		assertEquals((8-unblocked)*100,done.getCount());
+		blocker.countDown();
+		assertTrue(done.await(5,TimeUnit.SECONDS));
+		// Per topic, tasks ran in order
+		for(List<Integer> l:seen.values())
+		{
+			assertEquals(100,l.size());
+			for(int ix=0;ix<100;ix++)
+				assertEquals(ix,l.get(ix).intValue());
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class HandlerStatsTest
+{
+	@Test
+	public void testBuckets()
+	{
+		for(long v:new long[]{ 0, 1, 15, 16, 17, 100, 1000, 123456789L, Long.MAX_VALUE })
+		{
+			int b=HandlerStats.Histogram.bucketOf(v);
+			long low=HandlerStats.Histogram.lowestOf(b);
+			assertTrue(v+" "+low,low<=v);
+			// Within 12.5% of the bucket's lower bound
+			assertTrue(v+" "+low,v-low<=low/8 || v<16);
+			assertEquals(b,HandlerStats.Histogram.bucketOf(low));
+		}
+	}
+
+	@Test
+	public void testPercentiles()
+	{
+		HandlerStats s=new HandlerStats();
+		for(int ix=1;ix<=1000;ix++)
+			s.record(ix*1000L,10000L,ix%100==0);
+		assertEquals(1000,s.getInvocations());
+		assertEquals(10,s.getErrors());
+		long p50=s.queueWait.getPercentile(50);
+		assertTrue(String.valueOf(p50),p50>=500*7/8 && p50<=500);
+		long p99=s.queueWait.getPercentile(99);
+		assertTrue(String.valueOf(p99),p99>=990*7/8 && p99<=990);
+		assertEquals(1000,s.queueWait.getMax());
+		assertEquals(10,s.runTime.getPercentile(50));
+		assertEquals(10,s.runTime.getPercentile(100));
+	}
+}
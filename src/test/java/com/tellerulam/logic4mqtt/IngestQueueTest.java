@@ -0,0 +1,52 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.junit.*;
+
+public class IngestQueueTest
+{
+	private static List<String> run(IngestQueue.OverflowPolicy policy) throws InterruptedException
+	{
+		final CountDownLatch gate=new CountDownLatch(1);
+		final List<String> seen=Collections.synchronizedList(new ArrayList<String>());
+		IngestQueue q=new IngestQueue(2,policy,new IngestQueue.Processor(){
+			@Override
+			public void process(String topic,MqttMessage msg)
+			{
+				try
+				{
+					gate.await();
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				seen.add(topic+"="+new String(msg.getPayload()));
+			}
+		});
+		// The first message is taken by the (blocked) consumer, the next two fill the queue
+		q.put("a",new MqttMessage("1".getBytes()));
+		while(!q.getCmdlineSummary().contains("processed=1"))
+			Thread.sleep(1);
+		q.put("b",new MqttMessage("1".getBytes()));
+		q.put("c",new MqttMessage("1".getBytes()));
+		q.put("b",new MqttMessage("2".getBytes()));
+		gate.countDown();
+		while(!q.getCmdlineSummary().contains("depth=0"))
+			Thread.sleep(1);
+		Thread.sleep(50);
+		return seen;
+	}
+
+	@Test
+	public void testOverflow() throws InterruptedException
+	{
+		assertEquals(Arrays.asList("a=1","c=1","b=2"),run(IngestQueue.OverflowPolicy.DROPOLDEST));
+		assertEquals(Arrays.asList("a=1","b=2","c=1"),run(IngestQueue.OverflowPolicy.COALESCE));
+	}
+}
@@ -0,0 +1,64 @@
+package com.tellerulam.logic4mqtt;
+
+/*
+ * Compares converting a typical mix of plain payloads with Integer.valueOf()/Double.valueOf()
+ * and exception handling (as done before 0.31) with the NumberParser.
+ *
+ * Not a unit test; run manually with the test classpath.
+ */
+public class NumberParserBenchmark
+{
+	private static final String PAYLOADS[]={ "ON", "OFF", "OPEN", "TILTED", "CLOSED", "device_12", "21.5", "1", "0", "-3.25",
+		"1013.2", "65", "true", "online", "1455000000000", "2.5e-3" };
+
+	static Object legacy(String val)
+	{
+		if(val.indexOf('.')>=0)
+		{
+			try
+			{
+				return Double.valueOf(val);
+			}
+			catch(NumberFormatException nfe)
+			{
+				return val;
+			}
+		}
+		if("true".equalsIgnoreCase(val))
+			return Boolean.TRUE;
+		if("false".equalsIgnoreCase(val))
+			return Boolean.FALSE;
+		try
+		{
+			return Integer.valueOf(val);
+		}
+		catch(NumberFormatException nfe2)
+		{
+			try
+			{
+				return Double.valueOf(val);
+			}
+			catch(NumberFormatException nfe3)
+			{
+				return val;
+			}
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		final int rounds=2000000;
+		for(int pass=0;pass<5;pass++)
+		{
+			long t0=System.nanoTime();
+			Object sink=null;
+			for(int ix=0;ix<rounds;ix++)
+				sink=legacy(PAYLOADS[ix%PAYLOADS.length]);
+			long t1=System.nanoTime();
+			for(int ix=0;ix<rounds;ix++)
+				sink=PayloadDecoder.convertStringToObject(PAYLOADS[ix%PAYLOADS.length]);
+			long t2=System.nanoTime();
+			System.out.println("pass "+pass+": exceptions "+(t1-t0)/rounds+" ns/payload, parser "+(t2-t1)/rounds+" ns/payload ("+sink+")");
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class NumberParserTest
+{
+	/* The conversions as they were done with exceptions */
+	private static Object legacyNumber(String s)
+	{
+		try
+		{
+			return Integer.valueOf(s);
+		}
+		catch(NumberFormatException e)
+		{
+			try
+			{
+				return Double.valueOf(s);
+			}
+			catch(NumberFormatException e2)
+			{
+				return null;
+			}
+		}
+	}
+
+	private static Object legacyDouble(String s)
+	{
+		try
+		{
+			return Double.valueOf(s);
+		}
+		catch(NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	private static void check(String s)
+	{
+		// Double.equals() also tells -0.0 from 0.0 and matches NaN
+		assertEquals(s,legacyNumber(s),NumberParser.parseNumber(s));
+		assertEquals(s,legacyDouble(s),NumberParser.parseDouble(s));
+		byte b[]=s.getBytes(StandardCharsets.UTF_8);
+		if(NumberParser.AsciiChars.isAscii(b))
+			assertEquals(s,legacyNumber(s),NumberParser.parseNumber(new NumberParser.AsciiChars(b)));
+	}
+
+	@Test
+	public void testCases()
+	{
+		String cases[]={ "", " ", "ON", "OPEN", "device_12", "0", "-0", "+0", "1", "+5", "-17", "0001", "2147483647", "2147483648",
+			"-2147483648", "-2147483649", "12345678901234567890", "21.5", "-0.0", ".5", "5.", ".", "-.5", "1e3", "1E-3", "1e", "1e+",
+			"1.5e-7", "2.5d", "3f", "3F", "3x", " 12", "12 ", "\t1.5\n", "1 2", "--1", "+-1", "NaN", "-NaN", "Infinity", "-Infinity",
+			"Infinite", "0x10", "0x1p3", "-0x1.8p1", "0x", "1e400", "1e-400", "0.1", "0.30000000000000004", "9007199254740993",
+			"123456789012345678", "1234567890123456789012", "0.000000000000000000000000001", "4.9e-324", "1.7976931348623157e308",
+			"١٢", "1٢", "١.5", "Grüße", "1.2.3", "1e5.5", "e5", "true", "null" };
+		for(String s:cases)
+			check(s);
+	}
+
+	@Test
+	public void testRandom()
+	{
+		Random r=new Random(4711);
+		String alphabet="0123456789012345678901234567890123456789..eE+-dfxNI ١";
+		for(int ix=0;ix<50000;ix++)
+		{
+			StringBuilder sb=new StringBuilder();
+			int len=1+r.nextInt(12);
+			for(int jx=0;jx<len;jx++)
+				sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+			check(sb.toString());
+			check(Double.toString(Double.longBitsToDouble(r.nextLong())));
+			check(Double.toString(r.nextInt(100000)/Math.pow(10,r.nextInt(10))));
+		}
+	}
+}
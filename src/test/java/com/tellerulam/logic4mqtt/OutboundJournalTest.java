@@ -0,0 +1,42 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.junit.*;
+
+public class OutboundJournalTest
+{
+	@Test
+	public void testReplay() throws IOException
+	{
+		File dir=Files.createTempDirectory("journal").toFile();
+		// Small segments, so records are spread over several files
+		OutboundJournal j=new OutboundJournal(dir,64,3600*1000);
+		j.append("a/set/x",new MqttMessage("1".getBytes()));
+		j.append("a/set/y",new MqttMessage("1".getBytes()));
+		j.append("a/set/x",new MqttMessage("2".getBytes()));
+		assertTrue(dir.list().length>1);
+
+		// As after a restart
+		j=new OutboundJournal(dir,64,3600*1000);
+		assertTrue(j.hasPending());
+		final List<String> sent=new ArrayList<>();
+		assertTrue(j.replay(new OutboundJournal.Sender(){
+			@Override
+			public void send(String topic,MqttMessage msg)
+			{
+				assertEquals(1,msg.getQos());
+				sent.add(topic+"="+new String(msg.getPayload()));
+			}
+		}));
+		assertEquals(Arrays.asList("a/set/y=1","a/set/x=2"),sent);
+		assertFalse(j.hasPending());
+		assertEquals(0,dir.list().length);
+		dir.delete();
+	}
+}
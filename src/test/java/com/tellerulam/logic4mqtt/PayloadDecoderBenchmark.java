@@ -0,0 +1,48 @@
+package com.tellerulam.logic4mqtt;
+
+import java.nio.charset.*;
+
+import com.eclipsesource.json.*;
+
+/*
+ * Compares extracting the "val" member of a typical Zigbee-style JSON payload by building the
+ * full object tree (as done before 0.31) with the JsonMemberScanner path.
+ *
+ * Not a unit test; run manually with the test classpath.
+ */
+public class PayloadDecoderBenchmark
+{
+	static Object fullTree(byte p[])
+	{
+		JsonObject data=Json.parse(new String(p,StandardCharsets.UTF_8)).asObject();
+		MQTTHandler.convertJsonToJavaObjectTree(data);
+		return PayloadDecoder.convertVal(data.get("val"));
+	}
+
+	static Object scanned(byte p[])
+	{
+		return PayloadDecoder.decode(p,PayloadDecoder.TYPE_OBJECT,JsonMemberScanner.findMember(p,"val"))[0];
+	}
+
+	public static void main(String[] args)
+	{
+		StringBuilder s=new StringBuilder("{");
+		for(int ix=0;ix<35;ix++)
+			s.append("\"field").append(ix).append("\":").append(ix%3==0?"\"text value "+ix+"\"":Integer.toString(ix*17)).append(',');
+		s.append("\"val\":21.5,\"ts\":1455000000000,\"lc\":1455000000000}");
+		byte p[]=s.toString().getBytes(StandardCharsets.UTF_8);
+		final int rounds=200000;
+		for(int pass=0;pass<3;pass++)
+		{
+			long t0=System.nanoTime();
+			Object sink=null;
+			for(int ix=0;ix<rounds;ix++)
+				sink=fullTree(p);
+			long t1=System.nanoTime();
+			for(int ix=0;ix<rounds;ix++)
+				sink=scanned(p);
+			long t2=System.nanoTime();
+			System.out.println("pass "+pass+": full tree "+(t1-t0)/rounds+" ns/msg, scanner "+(t2-t1)/rounds+" ns/msg ("+sink+")");
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.eclipsesource.json.*;
+
+public class PayloadDecoderTest
+{
+	private static String member(String json,String name)
+	{
+		byte p[]=json.getBytes(StandardCharsets.UTF_8);
+		long span=JsonMemberScanner.findMember(p,name);
+		if(span<0)
+			return null;
+		return new String(p,JsonMemberScanner.start(span),JsonMemberScanner.end(span)-JsonMemberScanner.start(span),StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testScanner()
+	{
+		assertEquals("42",member("{\"val\":42}","val"));
+		assertEquals("\"a\\\"}b\"",member(" { \"x\" : {\"val\":[1,{\"v\":\"]\"}]}, \"val\" : \"a\\\"}b\" } ","val"));
+		assertEquals("true",member("{\"val\":1,\"val\":true}","val"));
+		assertEquals("123",member("{\"val\":null,\"ts\":123,\"lc\":456}","ts"));
+		assertNull(member("{\"value\":1}","val"));
+		assertNull(member("{}","val"));
+		assertEquals(JsonMemberScanner.MALFORMED,JsonMemberScanner.findMember("{\"val\":1".getBytes(StandardCharsets.UTF_8),"val"));
+		assertEquals(JsonMemberScanner.MALFORMED,JsonMemberScanner.findMember("{\"val\":1} x".getBytes(StandardCharsets.UTF_8),"val"));
+	}
+
+	@Test
+	public void testDecodeMatchesFullParse()
+	{
+		final String payloads[]={
+			"{\"val\":42.5,\"ts\":1,\"lc\":2}",
+			"{\"val\":\"OPEN\",\"hm_addr\":\"KEQ1:1\"}",
+			"{\"val\":true}",
+			"{\"val\":null}",
+			"{\"val\":{\"a\":1},\"x\":{\"y\":\"z\"}}",
+			"{\"noval\":1}",
+		};
+		for(String s:payloads)
+		{
+			byte p[]=s.getBytes(StandardCharsets.UTF_8);
+			Object res[]=PayloadDecoder.decode(p,PayloadDecoder.typeHint(p),JsonMemberScanner.findMember(p,"val"));
+			JsonObject o=Json.parse(s).asObject();
+			Object fullValue=MQTTHandler.convertJsonToJavaObjectTree(o);
+			assertEquals(s,o.get("val")==null?fullValue:PayloadDecoder.convertVal(o.get("val")),res[0]);
+			assertEquals(s,fullValue,new HashMap<>((Map<?,?>)res[1]));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.junit.*;
+
+public class PublishCombinerTest
+{
+	private final List<String> sent=Collections.synchronizedList(new ArrayList<String>());
+	private final PublishCombiner.Sender sender=new PublishCombiner.Sender(){
+		@Override
+		public void send(String topic,MqttMessage msg,String logValue)
+		{
+			sent.add(topic+"="+logValue);
+		}
+	};
+
+	private static MqttMessage msg(String v)
+	{
+		return new MqttMessage(v.getBytes());
+	}
+
+	@Test
+	public void testDedup()
+	{
+		PublishCombiner pc=new PublishCombiner(sender,60000,0);
+		pc.publish("a/set/x",msg("1"),"1");
+		pc.publish("a/set/x",msg("1"),"1");
+		pc.publish("a/set/y",msg("1"),"1");
+		pc.publish("a/set/x",msg("0"),"0");
+		assertEquals(Arrays.asList("a/set/x=1","a/set/y=1","a/set/x=0"),sent);
+		assertTrue(pc.getCmdlineSummary().contains("suppressed=1"));
+	}
+
+	@Test
+	public void testMerge() throws InterruptedException
+	{
+		PublishCombiner pc=new PublishCombiner(sender,0,200);
+		pc.publish("a/set/x",msg("1"),"1");
+		pc.publish("a/set/x",msg("2"),"2");
+		pc.publish("a/set/x",msg("3"),"3");
+		assertEquals(Arrays.asList("a/set/x=1"),sent);
+		Thread.sleep(500);
+		assertEquals(Arrays.asList("a/set/x=1","a/set/x=3"),sent);
+	}
+
+	@Test
+	public void testExpire()
+	{
+		PublishCombiner pc=new PublishCombiner(sender,60000,0);
+		pc.publish("a/set/x",msg("1"),"1");
+		pc.publish("a/set/y",msg("1"),"1");
+		long now=System.currentTimeMillis();
+		assertEquals(2,pc.expire(now));
+		assertEquals(0,pc.expire(now+60000));
+		// Once expired, the same payload is published again
+		pc.publish("a/set/x",msg("1"),"1");
+		assertEquals(Arrays.asList("a/set/x=1","a/set/y=1","a/set/x=1"),sent);
+	}
+}
@@ -0,0 +1,137 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class SharedCacheFileTest
+{
+	/*
+	 * Reads the file like an independent process would, following the documented layout
+	 */
+	private static Map<String,String> readAll(File f) throws IOException
+	{
+		Map<String,String> res=new HashMap<>();
+		try(RandomAccessFile raf=new RandomAccessFile(f,"r"))
+		{
+			ByteBuffer b=raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,raf.length()).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(SharedCacheFile.MAGIC,b.getInt(0));
+			assertEquals(SharedCacheFile.VERSION,b.getInt(4));
+			int slotSize=b.getInt(12);
+			int maxTopic=b.getInt(16);
+			int used=b.getInt(SharedCacheFile.OFFSET_USED_SLOTS);
+			for(int slot=0;slot<used;slot++)
+			{
+				int base=SharedCacheFile.HEADER_SIZE+slot*slotSize;
+				for(;;)
+				{
+					int seq=b.getInt(base);
+					if((seq&1)!=0)
+						continue;
+					byte topic[]=new byte[b.getShort(base+4)];
+					byte payload[]=new byte[b.getInt(base+8)];
+					b.position(base+SharedCacheFile.SLOT_HEADER_SIZE);
+					b.get(topic);
+					b.position(base+SharedCacheFile.SLOT_HEADER_SIZE+maxTopic);
+					b.get(payload);
+					if(b.getInt(base)!=seq)
+						continue;
+					if(topic.length>0)
+						res.put(new String(topic,StandardCharsets.UTF_8),new String(payload,StandardCharsets.UTF_8));
+					break;
+				}
+			}
+		}
+		return res;
+	}
+
+	@Test
+	public void testExport() throws IOException
+	{
+		File f=File.createTempFile("l4m",".shared");
+		try
+		{
+			SharedCacheFile sf=new SharedCacheFile(f,3,16,8);
+			sf.update(TopicHandle.of("test/shared/a"),"1".getBytes(StandardCharsets.UTF_8),1);
+			sf.update(TopicHandle.of("test/shared/b"),"{\"val\":true}".getBytes(StandardCharsets.UTF_8),2);
+			sf.update(TopicHandle.of("test/shared/a"),"2".getBytes(StandardCharsets.UTF_8),3);
+			// Too long for a slot
+			sf.update(TopicHandle.of("test/shared/much-too-long"),"3".getBytes(StandardCharsets.UTF_8),4);
+			Map<String,String> m=readAll(f);
+			assertEquals(2,m.size());
+			assertEquals("2",m.get("test/shared/a"));
+			// Truncated to the maximum payload size
+			assertEquals("{\"val\":t",m.get("test/shared/b"));
+
+			// Removed topics free their slot for new ones
+			sf.remove(TopicHandle.of("test/shared/a"));
+			sf.update(TopicHandle.of("test/shared/c"),"4".getBytes(StandardCharsets.UTF_8),5);
+			sf.update(TopicHandle.of("test/shared/d"),"5".getBytes(StandardCharsets.UTF_8),6);
+			sf.update(TopicHandle.of("test/shared/e"),"6".getBytes(StandardCharsets.UTF_8),7);
+			m=readAll(f);
+			assertEquals(3,m.size());
+			assertNull(m.get("test/shared/a"));
+			assertEquals("4",m.get("test/shared/c"));
+			assertEquals("5",m.get("test/shared/d"));
+			assertTrue(sf.getCmdlineSummary().contains("dropped=2"));
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentWriters() throws Exception
+	{
+		File f=File.createTempFile("l4m",".shared");
+		try
+		{
+			final SharedCacheFile sf=new SharedCacheFile(f,8,16,16);
+			final TopicHandle topics[]=new TopicHandle[4];
+			for(int ix=0;ix<topics.length;ix++)
+				topics[ix]=TopicHandle.of("test/shared/w"+ix);
+			Thread writers[]=new Thread[4];
+			for(int w=0;w<writers.length;w++)
+			{
+				writers[w]=new Thread(){
+					@Override
+					public void run()
+					{
+						for(int n=0;n<20000;n++)
+						{
+							TopicHandle t=topics[n%topics.length];
+							// A payload which is only consistent if written as a whole
+							byte p[]=new byte[1+n%15];
+							Arrays.fill(p,(byte)('a'+n%26));
+							sf.update(t,p,n);
+							if(n%1000==0)
+								sf.remove(t);
+						}
+					}
+				};
+				writers[w].start();
+			}
+			for(Thread w:writers)
+				w.join();
+			for(Map.Entry<String,String> me:readAll(f).entrySet())
+			{
+				assertTrue(me.getKey().startsWith("test/shared/w"));
+				String p=me.getValue();
+				for(int ix=1;ix<p.length();ix++)
+					assertEquals(p.charAt(0),p.charAt(ix));
+			}
+			assertTrue(sf.getCmdlineSummary().contains("used=4"));
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class TimeSeriesTest
+{
+	private static final long DAY=24*3600*1000L;
+
+	@Test
+	public void testRawRoundtrip()
+	{
+		TimeSeries s=new TimeSeries(365*DAY,365*DAY,365*DAY);
+		Random r=new Random(4711);
+		long ts=1455000000000L;
+		long times[]=new long[3000];
+		double vals[]=new double[times.length];
+		for(int ix=0;ix<times.length;ix++)
+		{
+			// Mostly regular intervals with jitter, some gaps, and a mix of repeated and noisy values
+			ts+=(ix%100==99)?r.nextInt(10000000):10000+r.nextInt(200)-100;
+			times[ix]=ts;
+			vals[ix]=(ix%7==0)?vals[Math.max(0,ix-1)]:(ix%5==0?-ix:20+r.nextGaussian());
+			s.add(ts,vals[ix]);
+		}
+		List<TimeSeries.Point> pts=s.query(0,Long.MAX_VALUE,TimeSeries.Resolution.RAW);
+		assertEquals(times.length,pts.size());
+		for(int ix=0;ix<times.length;ix++)
+		{
+			assertEquals(times[ix],pts.get(ix).ts);
+			assertEquals(vals[ix],pts.get(ix).avg,0);
+		}
+		pts=s.query(times[10],times[19],TimeSeries.Resolution.RAW);
+		assertEquals(10,pts.size());
+		assertEquals(times[10],pts.get(0).ts);
+	}
+
+	@Test
+	public void testTiers() throws IOException
+	{
+		TimeSeries s=new TimeSeries(60*60*1000L,DAY,365*DAY);
+		long start=1455000000000L-1455000000000L%(3600*1000L);
+		// One sample per 10s for ten hours
+		for(int ix=0;ix<10*360;ix++)
+			s.add(start+ix*10000L,ix%6);
+		List<TimeSeries.Point> pts=s.query(start,start+3*3600*1000L-1,TimeSeries.Resolution.HOUR);
+		assertEquals(3,pts.size());
+		assertEquals(0,pts.get(0).min,0);
+		assertEquals(5,pts.get(0).max,0);
+		assertEquals(2.5,pts.get(0).avg,0);
+		assertEquals(360,pts.get(0).count);
+		pts=s.query(start,start+3*3600*1000L-1,TimeSeries.Resolution.MINUTE);
+		assertEquals(180,pts.size());
+		assertEquals(6,pts.get(0).count);
+		// Raw samples older than an hour are gone, in whole blocks
+		assertTrue(s.query(start,start+8*3600*1000L,TimeSeries.Resolution.RAW).isEmpty());
+		assertEquals(start+9*3600*1000L,s.query(start+9*3600*1000L,Long.MAX_VALUE,TimeSeries.Resolution.RAW).get(0).ts);
+
+		ByteArrayOutputStream bo=new ByteArrayOutputStream();
+		s.writeTo(new DataOutputStream(bo));
+		TimeSeries s2=new TimeSeries(60*60*1000L,DAY,365*DAY);
+		s2.readFrom(ByteBuffer.wrap(bo.toByteArray()));
+		assertEquals(600,s2.query(0,Long.MAX_VALUE,TimeSeries.Resolution.MINUTE).size());
+		assertEquals(s.query(0,Long.MAX_VALUE,TimeSeries.Resolution.RAW).size(),s2.query(0,Long.MAX_VALUE,TimeSeries.Resolution.RAW).size());
+		// Appending after a restore continues the compressed block
+		s2.add(start+10*3600*1000L,42);
+		List<TimeSeries.Point> raw=s2.query(0,Long.MAX_VALUE,TimeSeries.Resolution.RAW);
+		assertEquals(42,raw.get(raw.size()-1).avg,0);
+		assertEquals(5,raw.get(raw.size()-2).avg,0);
+	}
+}
@@ -0,0 +1,97 @@
+package com.tellerulam.logic4mqtt;
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Measures TopicCache read throughput while a writer thread keeps storing values,
+ * with and without a global lock around all cache accesses (which is how the cache
+ * was protected before 0.31).
+ *
+ * Not a unit test; run manually with the test classpath.
+ */
+public class TopicCacheContentionBenchmark
+{
+	static final int TOPICS=1000;
+	static final Object globalLock=new Object();
+
+	static long run(final int readers,final boolean useGlobalLock,long durationMs) throws InterruptedException
+	{
+		final AtomicBoolean stop=new AtomicBoolean();
+		final AtomicLong reads=new AtomicLong();
+		final byte payloads[][]=new byte[TOPICS][];
+		for(int ix=0;ix<TOPICS;ix++)
+			payloads[ix]=("{\"val\":"+ix+",\"ts\":1455000000000}").getBytes(StandardCharsets.UTF_8);
+		Thread writer=new Thread(){
+			@Override
+			public void run()
+			{
+				int ix=0;
+				while(!stop.get())
+				{
+					String topic="bench/status/"+(ix%TOPICS);
+					if(useGlobalLock)
+					{
+						synchronized(globalLock)
+						{
+							TopicCache.storeTopic(topic,payloads[ix%TOPICS]);
+						}
+					}
+					else
+						TopicCache.storeTopic(topic,payloads[ix%TOPICS]);
+					ix++;
+				}
+			}
+		};
+		ExecutorService pool=Executors.newFixedThreadPool(readers);
+		for(int r=0;r<readers;r++)
+		{
+			pool.execute(new Runnable(){
+				@Override
+				public void run()
+				{
+					long n=0;
+					int ix=0;
+					while(!stop.get())
+					{
+						String topic="bench/status/"+(ix++%TOPICS);
+						if(useGlobalLock)
+						{
+							synchronized(globalLock)
+							{
+								TopicCache.getTopicValue(topic,0);
+							}
+						}
+						else
+							TopicCache.getTopicValue(topic,0);
+						n++;
+					}
+					reads.addAndGet(n);
+				}
+			});
+		}
+		writer.start();
+		Thread.sleep(durationMs);
+		stop.set(true);
+		writer.join();
+		pool.shutdown();
+		pool.awaitTermination(10,TimeUnit.SECONDS);
+		return reads.get()*1000/durationMs;
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int cpus=Runtime.getRuntime().availableProcessors();
+		for(int pass=0;pass<3;pass++)
+		{
+			for(int readers=1;readers<=cpus;readers*=2)
+			{
+				long locked=run(readers,true,1000);
+				long lockFree=run(readers,false,1000);
+				System.out.println("pass "+pass+", "+readers+" readers: global lock "+locked+" reads/s, lock-free "+lockFree+" reads/s");
+			}
+		}
+		System.exit(0);
+	}
+}
@@ -2,6 +2,10 @@ package com.tellerulam.logic4mqtt;
 
 import static org.junit.Assert.*;
 
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
 import org.junit.*;
 
 public class TopicCacheTest
@@ -29,4 +33,285 @@ public class TopicCacheTest
 		assertEquals("test/gurgh/status/blah",TopicCache.removeStatusFunction("test/gurgh/status/blah"));
 	}
 
+	private static byte[] b(String s)
+	{
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testStore()
+	{
+		TopicCache.Snapshot t=TopicCache.storeTopic("test/status/store",b("{\"val\":1,\"ts\":1}"));
+		assertFalse(t.wasRefreshed());
+		t=TopicCache.storeTopic("test/status/store",b("{\"val\":1,\"ts\":2}"));
+		assertTrue(t.wasRefreshed());
+		assertEquals(Double.valueOf(1),t.getValue());
+		t=TopicCache.storeTopic("test/status/store",b("2"));
+		assertFalse(t.wasRefreshed());
+		t=TopicCache.storeTopic("test/status/store",b("2"));
+		assertTrue(t.wasRefreshed());
+		assertEquals(Integer.valueOf(2),t.getValue());
+		assertEquals(Double.valueOf(1),t.getPreviousValue());
+		assertEquals(Double.valueOf(2),((Map<?,?>)TopicCache.getTopicValue("test/status/store",2).getFullValue()).get("ts"));
+	}
+
+	@Test
+	public void testRefreshByValue()
+	{
+		TopicCache.storeTopic("test/status/byvalue",b("{\"val\":1,\"ts\":1}"));
+		// Same value, differently encoded
+		assertTrue(TopicCache.storeTopic("test/status/byvalue",b("{\"val\": 1, \"ts\":2}")).wasRefreshed());
+		assertTrue(TopicCache.storeTopic("test/status/byvalue",b("{\"val\":1.0}")).wasRefreshed());
+		assertTrue(TopicCache.storeTopic("test/status/byvalue",b("{\"ts\":3,\"val\":1}")).wasRefreshed());
+		// JSON numbers are Doubles, the plain "1" an Integer
+		assertFalse(TopicCache.storeTopic("test/status/byvalue",b("1")).wasRefreshed());
+		assertFalse(TopicCache.storeTopic("test/status/byvalue",b("{\"val\":2}")).wasRefreshed());
+		assertFalse(TopicCache.storeTopic("test/status/byvalue",b("2.5")).wasRefreshed());
+		assertTrue(TopicCache.storeTopic("test/status/byvalue",b("{\"val\":2.5}")).wasRefreshed());
+	}
+
+	@Test
+	public void testMalformedPayload()
+	{
+		TopicCache.storeTopic("test/status/malformed",b("{\"val\":"));
+		TopicCache.Snapshot t=TopicCache.storeTopic("test/status/malformed",b("{\"val\":,"));
+		assertFalse(t.wasRefreshed());
+		assertEquals("{\"val\":,",t.getValue());
+	}
+
+	@Test
+	public void testCurrentPayload()
+	{
+		assertFalse(TopicCache.hasCurrentPayload("test/status/current/unknown",b("1")));
+		TopicCache.storeTopic("test/status/current",b("1.0"));
+		assertTrue(TopicCache.hasCurrentPayload("test/status/current",b("1.0")));
+		// The same value in a different payload is not a resent message
+		assertFalse(TopicCache.hasCurrentPayload("test/status/current",b("1")));
+		TopicCache.storeTopic("test/status/current",b("{\"val\":1}"));
+		assertTrue(TopicCache.hasCurrentPayload("test/status/current",b("{\"val\":1}")));
+	}
+
+	@Test
+	public void testHistory()
+	{
+		TopicCache.Snapshot first=TopicCache.storeTopic("test/status/history",b("0"));
+		assertTrue(first.isFirstValue());
+		for(int ix=1;ix<15;ix++)
+			TopicCache.storeTopic("test/status/history",b(Integer.toString(ix)));
+		assertEquals(Integer.valueOf(14),TopicCache.getTopicValue("test/status/history",0).getValue());
+		assertEquals(Integer.valueOf(5),TopicCache.getTopicValue("test/status/history",9).getValue());
+		assertNull(TopicCache.getTopicValue("test/status/history",10));
+		// Numbers are compared by value
+		TopicCache.Snapshot t=TopicCache.storeTopic("test/status/history",b("014"));
+		assertTrue(t.wasRefreshed());
+		t=TopicCache.storeTopic("test/status/history",b("14.5"));
+		assertFalse(t.wasRefreshed());
+		assertEquals(Double.valueOf(14.5),t.getValue());
+		// Later stores are not visible through an older snapshot
+		TopicCache.storeTopic("test/status/history",b("16"));
+		assertEquals(Double.valueOf(14.5),t.getValue());
+		assertEquals(Integer.valueOf(14),t.getPreviousValue());
+	}
+
+	@Test
+	public void testPatternSettings()
+	{
+		Map<TopicPattern,Long> settings=TopicCache.parsePatternSettings("a/+/b=3, c/#=1,bogus","test");
+		assertEquals(2,settings.size());
+		assertEquals(3,TopicCache.getPatternSetting(settings,"a/x/b",10));
+		assertEquals(1,TopicCache.getPatternSetting(settings,"c/d/e",10));
+		assertEquals(10,TopicCache.getPatternSetting(settings,"a/x/c",10));
+	}
+
+	@Test
+	public void testTopicValues()
+	{
+		TopicCache.storeTopic("test/status/view/a",b("1"));
+		assertEquals(Collections.singletonMap("test/status/view/a",(Object)Integer.valueOf(1)),TopicCache.getTopicValues("test//view/+"));
+		// The view picks up new topics
+		TopicCache.storeTopic("test/status/view/b",b("2"));
+		TopicCache.storeTopic("test/status/view/b/c",b("3"));
+		Map<String,Object> vals=TopicCache.getTopicValues("test//view/+");
+		assertEquals(2,vals.size());
+		assertEquals(Integer.valueOf(2),vals.get("test/status/view/b"));
+		assertEquals(3,TopicCache.getTopicValues("test//view/.*").size());
+	}
+
+	@Test
+	public void testSnapshotFile() throws IOException
+	{
+		TopicCache.storeTopic("test/status/snap/a",b("1"));
+		TopicCache.storeTopic("test/status/snap/a",b("{\"val\":2}"));
+		TopicCache.storeTopic("test/status/snap/b",b("text"));
+		File f=File.createTempFile("l4m",".cache");
+		try
+		{
+			new CacheSnapshotFile(f).save();
+			TopicCache.topics.remove(TopicHandle.of("test/status/snap/a"));
+			TopicCache.topics.remove(TopicHandle.of("test/status/snap/b"));
+			new CacheSnapshotFile(f).load();
+		}
+		finally
+		{
+			f.delete();
+		}
+		TopicCache.TopicValue tv=TopicCache.getTopicValue("test/status/snap/a",0);
+		assertEquals(Double.valueOf(2),tv.getValue());
+		assertTrue(tv.restored);
+		assertEquals(Integer.valueOf(1),TopicCache.getTopicValue("test/status/snap/a",1).getValue());
+		assertEquals("text",TopicCache.getTopicValue("test/status/snap/b",0).getValue());
+		// A restored value still needs to be confirmed by the broker
+		assertFalse(TopicCache.hasCurrentPayload("test/status/snap/a",b("{\"val\":2}")));
+		TopicCache.Snapshot t=TopicCache.storeTopic("test/status/snap/b",b("text"));
+		assertTrue(t.isFirstValue());
+		assertTrue(t.wasRefreshed());
+		assertFalse(TopicCache.getTopicValue("test/status/snap/b",0).restored);
+		assertTrue(TopicCache.hasCurrentPayload("test/status/snap/b",b("text")));
+		// The first live value after a restore counts as first value, and is not restored
+		t=TopicCache.storeTopic("test/status/snap/a",b("3"));
+		assertTrue(t.isFirstValue());
+		assertFalse(t.wasRefreshed());
+		assertEquals(Double.valueOf(2),t.getPreviousValue());
+		assertFalse(TopicCache.getTopicValue("test/status/snap/a",0).restored);
+	}
+
+	@Test
+	public void testCorruptSnapshotFile() throws IOException
+	{
+		TopicCache.storeTopic("test/status/corrupt/a",b("1"));
+		File f=File.createTempFile("l4m",".cache");
+		File aside=new File(f.getPath()+".corrupt");
+		try(DataOutputStream out=new DataOutputStream(new FileOutputStream(f)))
+		{
+			out.writeInt(0x4c344d43);
+			out.writeInt(3);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(2);
+			// A last payload with a bogus length
+			out.writeShort(21);
+			out.write(b("test/status/corrupt/a"));
+			out.writeLong(1);
+			out.writeInt(Integer.MAX_VALUE);
+		}
+		try
+		{
+			new CacheSnapshotFile(f).load();
+			assertFalse(f.exists());
+			assertTrue(aside.exists());
+		}
+		finally
+		{
+			f.delete();
+			aside.delete();
+		}
+		// The existing value is unchanged and not marked as restored
+		TopicCache.TopicValue tv=TopicCache.getTopicValue("test/status/corrupt/a",0);
+		assertEquals(Integer.valueOf(1),tv.getValue());
+		assertFalse(tv.restored);
+		assertNull(TopicCache.getTopicValue("test/status/corrupt/a",1));
+	}
+
+	@Test
+	public void testHandle()
+	{
+		TopicHandle h=TopicHandle.of("test/status/handle/x");
+		assertEquals(h,TopicHandle.of("test/status/handle/x"));
+		assertEquals("test/status/handle/x",h.toString());
+		assertEquals("test//handle/x",h.getDisplayName());
+		assertEquals("test//",TopicHandle.of("test/status/").getDisplayName());
+		assertEquals("test/status",TopicHandle.of("test/status").getDisplayName());
+		assertEquals("/a//b",TopicHandle.of("/a//b").toString());
+		assertNull(TopicHandle.lookup("test/status/handle/never-seen-segment"));
+		assertSame(h.getSegments()[2],TopicHandle.of("other/handle").getSegments()[1]);
+	}
+
+	@Test
+	public void testSegmentRelease()
+	{
+		TopicHandle kept=TopicHandle.of("test/release/kept");
+		TopicHandle a=TopicHandle.of("test/release/only-a");
+		TopicHandle b=TopicHandle.of("test/release/only-a");
+		a.release();
+		assertNotNull(TopicHandle.lookup("test/release/only-a"));
+		b.release();
+		assertNull(TopicHandle.lookup("test/release/only-a"));
+		assertEquals("test/release/kept",kept.toString());
+		// Released handles stay readable, and ids are not reused
+		assertEquals("test/release/only-a",a.toString());
+		assertEquals("test/release/only-b",TopicHandle.of("test/release/only-b").toString());
+		TopicHandle again=TopicHandle.of("test/release/only-a");
+		assertEquals("test/release/only-a",again.toString());
+		assertFalse(again.equals(a));
+		assertEquals("test/release/only-a",a.toString());
+		// Looking up an unknown topic does not intern it
+		assertFalse(TopicCache.hasCurrentPayload("test/release/only-c",b("1")));
+		assertNull(TopicHandle.lookup("test/release/only-c"));
+	}
+
+	@Test
+	public void testAggregate()
+	{
+		TopicCache.storeTopic("test/status/agg/a",b("10"));
+		TopicAggregate sum=TopicCache.aggregate("test//agg/+","sum",null);
+		TopicAggregate max=TopicCache.aggregate("test//agg/+","max",null);
+		TopicAggregate any=TopicCache.aggregate("test//agg/+","any",null);
+		assertSame(sum,TopicCache.aggregate("test//agg/+","SUM",null));
+		assertEquals(Double.valueOf(10),sum.getValue());
+		TopicCache.storeTopic("test/status/agg/b",b("{\"val\":5.5}"));
+		TopicCache.storeTopic("test/status/agg/c",b("text"));
+		assertEquals(Double.valueOf(15.5),sum.getValue());
+		assertEquals(2,sum.getCount());
+		assertEquals(Double.valueOf(10),max.getValue());
+		TopicCache.storeTopic("test/status/agg/a",b("0"));
+		assertEquals(Double.valueOf(5.5),sum.getValue());
+		assertEquals(Double.valueOf(5.5),max.getValue());
+		assertEquals(Boolean.TRUE,any.getValue());
+		TopicCache.storeTopic("test/status/agg/b",b("false"));
+		assertEquals(Boolean.FALSE,any.getValue());
+		assertEquals(Double.valueOf(0),max.getValue());
+	}
+
+	@Test
+	public void testAggregateOwnOutput()
+	{
+		// The topic the result is published to matches the pattern, but does not contribute
+		TopicCache.storeTopic("test/status/aggout/total",b("1"));
+		TopicAggregate sum=TopicCache.aggregate("test//aggout/+","sum","test/status/aggout/total");
+		assertEquals(0,sum.getCount());
+		TopicCache.storeTopic("test/status/aggout/total",b("2"));
+		assertEquals(0,sum.getCount());
+		// Also for topics created after the aggregate
+		TopicAggregate count=TopicCache.aggregate("test//aggout2/+","count","test/status/aggout2/count");
+		TopicCache.storeTopic("test/status/aggout2/count",b("1"));
+		assertEquals(0,count.getCount());
+	}
+
+	private static Set<String> scan(String pattern,boolean parallel)
+	{
+		Set<String> res=new HashSet<>();
+		for(Iterator<TopicCache> it=TopicCache.scan(TopicPattern.compile(pattern),parallel);it.hasNext();)
+			res.add(it.next().handle.toString());
+		return res;
+	}
+
+	@Test
+	public void testScan()
+	{
+		for(int ix=0;ix<50000;ix++)
+			TopicCache.storeTopic("test/status/scan/"+(ix%100)+"/"+ix,b(Integer.toString(ix)));
+		Set<String> seq=scan("test/status/scan/1.*/[0-9]*[05]",false);
+		assertEquals(1000,seq.size());
+		assertEquals(seq,scan("test/status/scan/1.*/[0-9]*[05]",true));
+		assertEquals(500,scan("test/status/scan/42/#",true).size());
+		// Spans several parts of the keyspace
+		assertEquals(50000,scan("test/status/scan/#",true).size());
+		// A scan which is stopped early leaves nothing running
+		assertTrue(TopicCache.scan(TopicPattern.compile("test/status/scan/#"),true).hasNext());
+		assertEquals(1000,scan("test/status/scan/1.*/[0-9]*[05]",true).size());
+		assertTrue(scan("test/status/unknownsegment/.*",true).isEmpty());
+		assertArrayEquals(new String[]{ "a", "b" },TopicPattern.compile("a/b/c[0-9]/.*").getLiteralPrefix());
+		Iterator<Map.Entry<String,Object>> it=TopicCache.scanTopicValues("test//scan/7/4907");
+		assertEquals(Integer.valueOf(4907),it.next().getValue());
+		assertFalse(it.hasNext());
+	}
 }
@@ -0,0 +1,64 @@
+package com.tellerulam.logic4mqtt;
+
+/*
+ * Compares the heap retained by synthetic topic names kept as Strings with the same
+ * topics kept as TopicHandles.
+ *
+ * Not a unit test; run manually with the test classpath and a sufficient -Xmx, once per
+ * topic count, as the segment dictionary is never cleared, e.g.
+ * java -Xmx2g ... TopicHandleFootprintBenchmark 1000000
+ */
+public class TopicHandleFootprintBenchmark
+{
+	private static final String PREFIXES[]={ "zigbee2mqtt/", "hm/status/", "knx/status/", "tasmota/tele/" };
+	private static final String ATTRS[]={ "temperature", "humidity", "battery", "linkquality", "state", "power",
+		"energy", "voltage", "current", "illuminance", "occupancy", "contact", "LEVEL", "WORKING", "SET_TEMPERATURE", "ACTUAL_TEMPERATURE" };
+
+	static String topic(int ix)
+	{
+		// Devices have a few channels with a number of attributes each
+		int attr=ix%ATTRS.length;
+		int channel=(ix/ATTRS.length)%4;
+		int device=ix/(ATTRS.length*4);
+		return new StringBuilder(PREFIXES[device%PREFIXES.length]).append("device_").append(device).append('/').append(channel).append('/').append(ATTRS[attr]).toString();
+	}
+
+	static long usedHeap()
+	{
+		Runtime rt=Runtime.getRuntime();
+		for(int ix=0;ix<5;ix++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(100);
+			}
+			catch(InterruptedException e)
+			{
+				/* Ignore */
+			}
+		}
+		return rt.totalMemory()-rt.freeMemory();
+	}
+
+	public static void main(String[] args)
+	{
+		int n=Integer.parseInt(args[0]);
+		long base=usedHeap();
+		String strings[]=new String[n];
+		for(int ix=0;ix<n;ix++)
+			strings[ix]=topic(ix);
+		long withStrings=usedHeap()-base;
+		// Keep the array reachable until after the measurement
+		System.out.println("Last topic: "+strings[n-1]);
+		strings=null;
+		base=usedHeap();
+		TopicHandle handles[]=new TopicHandle[n];
+		for(int ix=0;ix<n;ix++)
+			handles[ix]=TopicHandle.of(topic(ix));
+		long withHandles=usedHeap()-base;
+		System.out.println("Last topic: "+handles[n-1]);
+		System.out.println(n+" topics: Strings "+withStrings/1024+" KB ("+withStrings/n+" bytes/topic), handles "+withHandles/1024
+			+" KB ("+withHandles/n+" bytes/topic, including "+TopicHandle.getSegmentCount()+" dictionary segments)");
+	}
+}
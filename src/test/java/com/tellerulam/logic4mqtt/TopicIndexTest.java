@@ -0,0 +1,99 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class TopicIndexTest
+{
+	private static Set<String> lookup(TopicIndex<String> ix,String topic)
+	{
+		Set<String> res=new TreeSet<>();
+		ix.collect(topic,res);
+		return res;
+	}
+
+	@Test
+	public void testMatching()
+	{
+		final String patterns[]={
+			"hm/status/KEQ1:1/STATE",
+			"hm/status/.*/STATE",
+			"hm/status/+/STATE",
+			"hm/#",
+			"#",
+			"knx/status/.*",
+			"hm/status/KEQ[0-9]+:1/STATE",
+		};
+		final String topics[]={
+			"hm/status/KEQ1:1/STATE",
+			"hm/status/KEQ2:1/STATE",
+			"hm/status/a/b/STATE",
+			"hm",
+			"hm/set/KEQ1:1/STATE",
+			"knx/status/",
+			"knx/status",
+			"knx/status/a/b",
+			"hm/status//STATE",
+			"",
+		};
+		TopicIndex<String> ix=new TopicIndex<>();
+		for(String p:patterns)
+			ix.add(TopicPattern.compile(p),p);
+		assertEquals(1,ix.getResidualCount());
+
+		// The index must agree with a plain match of each pattern
+		for(String t:topics)
+		{
+			Set<String> expected=new TreeSet<>();
+			for(String p:patterns)
+				if(TopicPattern.compile(p).matches(t))
+					expected.add(p);
+			assertEquals(t,expected,lookup(ix,t));
+		}
+
+		for(String p:patterns)
+			assertTrue(ix.remove(TopicPattern.compile(p),p));
+		assertEquals(0,ix.size());
+		assertTrue(lookup(ix,"hm/status/KEQ1:1/STATE").isEmpty());
+	}
+
+	@Test
+	public void testWildcards()
+	{
+		assertTrue(TopicPattern.compile("hm/#").matches("hm"));
+		assertTrue(TopicPattern.compile("hm/#").matches("hm/a/b"));
+		assertFalse(TopicPattern.compile("hm/#").matches("hmx"));
+		assertTrue(TopicPattern.compile("a/+/c").matches("a/b/c"));
+		assertFalse(TopicPattern.compile("a/+/c").matches("a/b/b/c"));
+		assertTrue(TopicPattern.compile("a/.*/c").matches("a/b/b/c"));
+		assertNull(TopicPattern.compile("a/b.c").getSegments());
+		// Wildcard segments are translated the same way if other segments are regular expressions
+		assertTrue(TopicPattern.compile("hm/status/+/STA.E").matches("hm/status/x/STATE"));
+		assertFalse(TopicPattern.compile("hm/status/+/STA.E").matches("hm/status/a/b/STATE"));
+		assertFalse(TopicPattern.compile("hm/status/+/STA.E").matches("hm/status///STATE"));
+		assertTrue(TopicPattern.compile("hm/statu.?/#").matches("hm/status/a/b"));
+		assertTrue(TopicPattern.compile("hm/statu.?/#").matches("hm/statu"));
+	}
+
+	@Test
+	public void testCoveringFilters()
+	{
+		assertEquals("hm/status/KEQ1:1/STATE",TopicPattern.compile("hm/status/KEQ1:1/STATE").getCoveringFilter());
+		assertEquals("hm/status/#",TopicPattern.compile("hm/status/.*/STATE").getCoveringFilter());
+		assertEquals("hm/status/+/STATE",TopicPattern.compile("hm/status/+/STATE").getCoveringFilter());
+		assertEquals("hm/status/#",TopicPattern.compile("hm/status/KEQ[0-9]+:1/STATE").getCoveringFilter());
+		assertEquals("#",TopicPattern.compile("hm/status/a|knx/status/b").getCoveringFilter());
+		assertEquals("#",TopicPattern.compile("hm/?status").getCoveringFilter());
+		assertEquals("hm/status/+/#",TopicPattern.compile("hm/status/+/STA.E").getCoveringFilter());
+
+		Set<String> min=TopicPattern.minimizeFilters(Arrays.asList(
+			"hm/status/+/STATE","hm/status/#","hm/status/a/STATE","knx/status/a","knx/status/a","logic/status/#"
+		));
+		assertEquals(new TreeSet<>(Arrays.asList("hm/status/#","knx/status/a","logic/status/#")),min);
+		assertTrue(TopicPattern.filterCovers("hm/#","hm"));
+		assertFalse(TopicPattern.filterCovers("hm/+","hm/#"));
+	}
+}
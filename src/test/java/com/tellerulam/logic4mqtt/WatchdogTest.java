@@ -0,0 +1,55 @@
+package com.tellerulam.logic4mqtt;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+public class WatchdogTest
+{
+	@Test
+	public void testOverrun() throws InterruptedException
+	{
+		final CountDownLatch started=new CountDownLatch(1), release=new CountDownLatch(1);
+		Thread t=new Thread(){
+			@Override
+			public void run()
+			{
+				Watchdog.Running r=Watchdog.begin(null,"test");
+				started.countDown();
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+					/* Ignore */
+				}
+				Watchdog.end(r);
+			}
+		};
+		t.start();
+		started.await();
+		assertEquals(0,Watchdog.check(TimeUnit.HOURS.toNanos(1)));
+		Thread.sleep(20);
+		assertEquals(1,Watchdog.check(TimeUnit.MILLISECONDS.toNanos(10)));
+		// Only reported once per run
+		assertEquals(0,Watchdog.check(TimeUnit.MILLISECONDS.toNanos(10)));
+		release.countDown();
+		t.join();
+		assertEquals(0,Watchdog.check(0));
+	}
+
+	@Test
+	public void testFindScript()
+	{
+		StackTraceElement stack[]={
+			new StackTraceElement("java.lang.Thread","sleep","Thread.java",100),
+			new StackTraceElement("jdk.nashorn.internal.scripts.Script$Recompilation","callback","lights.js",42),
+			new StackTraceElement("com.tellerulam.logic4mqtt.EventHandler","run","EventHandler.java",10)
+		};
+		assertEquals("lights.js:42",Watchdog.findScript(stack));
+		assertNull(Watchdog.findScript(new StackTraceElement[]{ stack[0], stack[2] }));
+	}
+}